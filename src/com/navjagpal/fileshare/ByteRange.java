@@ -0,0 +1,141 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * An inclusive byte range from an HTTP Range header.
+ */
+public class ByteRange {
+
+  /* Requests asking for more ranges than this get the whole entity. */
+  private static final int MAX_RANGES = 64;
+
+  private final long mStart;
+  private final long mEnd;
+
+  public ByteRange(long start, long end) {
+    mStart = start;
+    mEnd = end;
+  }
+
+  public long getStart() {
+    return mStart;
+  }
+
+  public long getEnd() {
+    return mEnd;
+  }
+
+  public long getLength() {
+    return mEnd - mStart + 1;
+  }
+
+  /* Returns the Content-Range value for this range of an entity. */
+  public String toContentRange(long entityLength) {
+    return "bytes " + mStart + "-" + mEnd + "/" + entityLength;
+  }
+
+  /**
+   * Parses a Range header against an entity of the given length. Overlapping
+   * and adjacent ranges are merged.
+   *
+   * @param header The Range header value, may be null.
+   * @param entityLength Length of the full entity.
+   * @return The satisfiable ranges in ascending order, an empty list if none
+   *     of the ranges can be satisfied, or null if the header should be
+   *     ignored and the full entity sent.
+   */
+  public static List<ByteRange> parse(String header, long entityLength) {
+    if (header == null) {
+      return null;
+    }
+    header = header.trim();
+    if (!header.regionMatches(true, 0, "bytes=", 0, "bytes=".length())) {
+      return null;
+    }
+    List<ByteRange> ranges = new ArrayList<ByteRange>();
+    StringTokenizer tokens = new StringTokenizer(
+        header.substring("bytes=".length()), ",");
+    while (tokens.hasMoreTokens()) {
+      String spec = tokens.nextToken().trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      long start;
+      long end;
+      try {
+        if (dash == 0) {
+          /* Suffix range, the last n bytes. */
+          long suffix = Long.parseLong(spec.substring(1).trim());
+          if (suffix <= 0) {
+            continue;
+          }
+          start = Math.max(0, entityLength - suffix);
+          end = entityLength - 1;
+        } else {
+          start = Long.parseLong(spec.substring(0, dash).trim());
+          String last = spec.substring(dash + 1).trim();
+          end = last.length() == 0 ? entityLength - 1 : Long.parseLong(last);
+          if (start < 0 || end < start) {
+            return null;
+          }
+          end = Math.min(end, entityLength - 1);
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      if (start < entityLength) {
+        ranges.add(new ByteRange(start, end));
+      }
+    }
+    ranges = coalesce(ranges);
+    if (ranges.size() > MAX_RANGES) {
+      return null;
+    }
+    return ranges;
+  }
+
+  private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+    if (ranges.size() < 2) {
+      return ranges;
+    }
+    Collections.sort(ranges, new Comparator<ByteRange>() {
+      public int compare(ByteRange r1, ByteRange r2) {
+        return r1.mStart < r2.mStart ? -1 : (r1.mStart == r2.mStart ? 0 : 1);
+      }
+    });
+    List<ByteRange> merged = new ArrayList<ByteRange>();
+    ByteRange current = ranges.get(0);
+    for (int i = 1; i < ranges.size(); i++) {
+      ByteRange next = ranges.get(i);
+      if (next.mStart <= current.mEnd + 1) {
+        current = new ByteRange(current.mStart,
+            Math.max(current.mEnd, next.mEnd));
+      } else {
+        merged.add(current);
+        current = next;
+      }
+    }
+    merged.add(current);
+    return merged;
+  }
+}
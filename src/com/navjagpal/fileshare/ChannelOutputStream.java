@@ -0,0 +1,94 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * OutputStream that gathers small writes in a direct buffer and hands them
+ * to a FileChannel in large blocks, so the kernel sees a few big writes
+ * instead of one per multipart read.
+ */
+public class ChannelOutputStream extends OutputStream {
+
+  private final FileChannel mChannel;
+
+  private final ByteBuffer mBuffer;
+
+  private long mCount;
+
+  /**
+   * @param channel Closed together with the stream.
+   * @param buffer A direct buffer, may be reused once the stream is closed.
+   */
+  public ChannelOutputStream(FileChannel channel, ByteBuffer buffer) {
+    mChannel = channel;
+    mBuffer = buffer;
+    mBuffer.clear();
+  }
+
+  /* Returns the number of bytes written to the stream so far. */
+  public long getCount() {
+    return mCount;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (!mBuffer.hasRemaining()) {
+      drain();
+    }
+    mBuffer.put((byte) b);
+    mCount++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    mCount += len;
+    while (len > 0) {
+      if (!mBuffer.hasRemaining()) {
+        drain();
+      }
+      int count = Math.min(len, mBuffer.remaining());
+      mBuffer.put(b, off, count);
+      off += count;
+      len -= count;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    drain();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      drain();
+    } finally {
+      mChannel.close();
+    }
+  }
+
+  private void drain() throws IOException {
+    mBuffer.flip();
+    while (mBuffer.hasRemaining()) {
+      mChannel.write(mBuffer);
+    }
+    mBuffer.clear();
+  }
+}
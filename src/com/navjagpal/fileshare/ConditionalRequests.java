@@ -0,0 +1,129 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import java.io.File;
+
+/**
+ * Entity tags and the evaluation of conditional request headers.
+ */
+public class ConditionalRequests {
+
+  private ConditionalRequests() {
+  }
+
+  /**
+   * Returns a strong entity tag for the content of a file. It changes when
+   * the file is modified, resized or replaced by a file at another path.
+   */
+  public static String getFileEntityTag(File file, long length,
+      long lastModified) {
+    return "\"" + Long.toHexString(length) + "-"
+        + Long.toHexString(lastModified) + "-"
+        + Integer.toHexString(file.getAbsolutePath().hashCode()) + "\"";
+  }
+
+  /* Returns a weak entity tag for generated content. */
+  public static String getWeakEntityTag(String version) {
+    return "W/\"" + version + "\"";
+  }
+
+  /**
+   * Returns whether a GET can be answered with 304 Not Modified. If-None-Match
+   * takes precedence over If-Modified-Since.
+   *
+   * @param entityTag Current entity tag, or null if there is none.
+   * @param lastModified Current modification time, or 0 if unknown.
+   */
+  public static boolean isNotModified(HttpRequest request, String entityTag,
+      long lastModified) {
+    Header ifNoneMatch = request.getFirstHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      return entityTag != null
+          && matches(ifNoneMatch.getValue(), entityTag, false);
+    }
+    Header ifModifiedSince = request.getFirstHeader("If-Modified-Since");
+    if (ifModifiedSince != null && lastModified > 0) {
+      return lastModified / 1000 <= parseSeconds(ifModifiedSince.getValue());
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether a Range header applies, which is when there is no
+   * If-Range or its validator still matches. Only strong tags and exact
+   * dates match.
+   */
+  public static boolean isRangeApplicable(HttpRequest request,
+      String entityTag, long lastModified) {
+    Header ifRange = request.getFirstHeader("If-Range");
+    if (ifRange == null) {
+      return true;
+    }
+    String value = ifRange.getValue().trim();
+    if (value.startsWith("\"") || value.startsWith("W/")) {
+      return entityTag != null && matches(value, entityTag, true);
+    }
+    return lastModified > 0 && lastModified / 1000 == parseSeconds(value);
+  }
+
+  /**
+   * Compares an entity tag with a list of tags from a request header.
+   *
+   * @param strong Whether weak tags are excluded from the comparison.
+   */
+  private static boolean matches(String header, String entityTag,
+      boolean strong) {
+    if (header.trim().equals("*")) {
+      return true;
+    }
+    if (strong && isWeak(entityTag)) {
+      return false;
+    }
+    String opaqueTag = getOpaqueTag(entityTag);
+    for (String candidate : header.split(",")) {
+      candidate = candidate.trim();
+      if (strong && isWeak(candidate)) {
+        continue;
+      }
+      if (getOpaqueTag(candidate).equals(opaqueTag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isWeak(String entityTag) {
+    return entityTag.startsWith("W/");
+  }
+
+  private static String getOpaqueTag(String entityTag) {
+    return isWeak(entityTag) ? entityTag.substring(2) : entityTag;
+  }
+
+  /* Returns an HTTP date in seconds, or -1 if it can't be parsed. */
+  private static long parseSeconds(String date) {
+    try {
+      return DateUtils.parseDate(date).getTime() / 1000;
+    } catch (DateParseException e) {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,156 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Bounded pool of worker threads that serve accepted client connections.
+ *
+ * Connections wait in a fixed size queue when all workers are busy. Once the
+ * queue is full as well, the client gets a 503 with a Retry-After header
+ * instead of another thread being spawned.
+ */
+public class ConnectionExecutor {
+
+  private static final String TAG = "FileSharer ConnectionExecutor";
+
+  private static final String OVERLOADED_BODY = "Server busy, try again later.";
+
+  private final ThreadPoolExecutor mExecutor;
+
+  private final int mRetryAfterSeconds;
+
+  private final AtomicLong mAccepted = new AtomicLong();
+
+  private final AtomicLong mRejected = new AtomicLong();
+
+  public ConnectionExecutor(int maxWorkers, int queueSize,
+      int retryAfterSeconds) {
+    if (maxWorkers < 1) {
+      maxWorkers = 1;
+    }
+    if (queueSize < 1) {
+      queueSize = 1;
+    }
+    mRetryAfterSeconds = retryAfterSeconds;
+    /* Core and maximum sizes are equal: with a bounded queue the pool only
+     * grows past the core size once the queue is full, which is the
+     * opposite of what we want. */
+    mExecutor = new ThreadPoolExecutor(maxWorkers, maxWorkers,
+        60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+        new WorkerThreadFactory());
+  }
+
+  /**
+   * Queues a connection for handling. If the pool is saturated the client is
+   * told to come back later and the socket is closed.
+   *
+   * @param socket The accepted client socket.
+   * @param task Serves the connection, and is responsible for closing it.
+   */
+  public void execute(Socket socket, Runnable task) {
+    mAccepted.incrementAndGet();
+    try {
+      mExecutor.execute(task);
+    } catch (RejectedExecutionException e) {
+      mRejected.incrementAndGet();
+      Log.w(TAG, "Connection pool saturated, rejecting connection");
+      sendOverloaded(socket);
+    }
+  }
+
+  /* Stops accepting work and interrupts any running workers. */
+  public void shutdown() {
+    mExecutor.shutdownNow();
+  }
+
+  /**
+   * Writes a minimal 503 response. This runs on the accepting thread, so it
+   * must never block for long; the response is small enough to fit in the
+   * socket send buffer.
+   */
+  private void sendOverloaded(Socket socket) {
+    try {
+      String response = "HTTP/1.1 503 Service Unavailable\r\n"
+          + "Retry-After: " + mRetryAfterSeconds + "\r\n"
+          + "Content-Type: text/plain\r\n"
+          + "Content-Length: " + OVERLOADED_BODY.length() + "\r\n"
+          + "Connection: close\r\n"
+          + "\r\n"
+          + OVERLOADED_BODY;
+      OutputStream output = socket.getOutputStream();
+      output.write(response.getBytes("US-ASCII"));
+      output.flush();
+    } catch (IOException e) {
+      Log.d(TAG, "Problem sending 503 " + e.toString());
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        Log.d(TAG, "Problem closing rejected socket " + e.toString());
+      }
+    }
+  }
+
+  public int getActiveCount() {
+    return mExecutor.getActiveCount();
+  }
+
+  public int getQueuedCount() {
+    return mExecutor.getQueue().size();
+  }
+
+  public long getAcceptedCount() {
+    return mAccepted.get();
+  }
+
+  public long getRejectedCount() {
+    return mRejected.get();
+  }
+
+  /* Returns a human readable summary of the pool counters. */
+  public String getStatistics() {
+    return "workers=" + mExecutor.getPoolSize()
+        + "/" + mExecutor.getMaximumPoolSize()
+        + " active=" + mExecutor.getActiveCount()
+        + " peak=" + mExecutor.getLargestPoolSize()
+        + " queued=" + getQueuedCount()
+        + " accepted=" + mAccepted.get()
+        + " completed=" + mExecutor.getCompletedTaskCount()
+        + " rejected=" + mRejected.get();
+  }
+
+  private static class WorkerThreadFactory implements ThreadFactory {
+    private final AtomicInteger mCount = new AtomicInteger();
+
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "FileSharer worker " + mCount.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
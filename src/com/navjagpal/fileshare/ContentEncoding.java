@@ -0,0 +1,214 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Negotiation of gzip and deflate content codings, and the compressors for
+ * them. Deflaters hold native memory that is only freed by end(), so they
+ * are pooled instead of being left to the garbage collector.
+ */
+public class ContentEncoding {
+
+  public static final String GZIP = "gzip";
+  public static final String DEFLATE = "deflate";
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  /* Deflaters kept for each coding, one per busy worker is plenty. */
+  private static final int MAX_POOLED_DEFLATERS = 4;
+
+  /* Magic, deflate method, no flags, mtime, extra flags and OS. */
+  private static final byte[] GZIP_HEADER = {
+      0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 0};
+
+  private static final List<Deflater> sGzipDeflaters =
+      new ArrayList<Deflater>();
+  private static final List<Deflater> sDeflateDeflaters =
+      new ArrayList<Deflater>();
+
+  private ContentEncoding() {
+  }
+
+  /**
+   * Picks a coding from the Accept-Encoding header, preferring gzip.
+   *
+   * @return GZIP, DEFLATE, or null to send the identity coding.
+   */
+  public static String select(HttpRequest request) {
+    Header header = request.getFirstHeader("Accept-Encoding");
+    if (header == null) {
+      return null;
+    }
+    boolean gzipNamed = false;
+    boolean gzip = false;
+    boolean deflate = false;
+    boolean any = false;
+    for (String token : header.getValue().split(",")) {
+      String[] params = token.split(";");
+      String coding = params[0].trim().toLowerCase();
+      boolean accepted = !isRefused(params);
+      if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+        gzipNamed = true;
+        gzip = accepted;
+      } else if (coding.equals(DEFLATE)) {
+        deflate = accepted;
+      } else if (coding.equals("*")) {
+        any = accepted;
+      }
+    }
+    /* The wildcard only covers codings not named. */
+    if (gzip || (any && !gzipNamed)) {
+      return GZIP;
+    }
+    return deflate ? DEFLATE : null;
+  }
+
+  /* Whether a coding's parameters include q=0. */
+  private static boolean isRefused(String[] params) {
+    for (int i = 1; i < params.length; i++) {
+      String param = params[i].trim();
+      if (param.startsWith("q=")) {
+        try {
+          return Float.parseFloat(param.substring(2)) <= 0;
+        } catch (NumberFormatException e) {
+          return false;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Whether content of a type gets smaller when compressed. Images, audio,
+   * video and archives are compressed already.
+   */
+  public static boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    String type = contentType.toLowerCase();
+    int semicolon = type.indexOf(';');
+    if (semicolon >= 0) {
+      type = type.substring(0, semicolon);
+    }
+    type = type.trim();
+    return type.startsWith("text/") || type.endsWith("+xml")
+        || type.equals("application/json")
+        || type.equals("application/javascript")
+        || type.equals("application/x-javascript")
+        || type.equals("application/xml")
+        || type.equals("audio/x-mpegurl");
+  }
+
+  /**
+   * Returns the entity tag of a coded variant. A strong tag names the exact
+   * bytes sent, so each coding gets its own; weak tags are kept as they are.
+   */
+  public static String getEntityTag(String entityTag, String encoding) {
+    if (entityTag == null || entityTag.startsWith("W/")) {
+      return entityTag;
+    }
+    return entityTag.substring(0, entityTag.length() - 1) + "-" + encoding
+        + "\"";
+  }
+
+  /* Takes a deflater for a coding from the pool, or makes a new one. */
+  public static Deflater obtainDeflater(String encoding) {
+    List<Deflater> pool = getPool(encoding);
+    synchronized (pool) {
+      if (!pool.isEmpty()) {
+        return pool.remove(pool.size() - 1);
+      }
+    }
+    /* gzip frames raw deflate data itself, deflate is the zlib format. */
+    return new Deflater(Deflater.DEFAULT_COMPRESSION, GZIP.equals(encoding));
+  }
+
+  /* Gives a deflater back, freeing it if the pool is full. */
+  public static void recycle(String encoding, Deflater deflater) {
+    deflater.reset();
+    List<Deflater> pool = getPool(encoding);
+    synchronized (pool) {
+      if (pool.size() < MAX_POOLED_DEFLATERS) {
+        pool.add(deflater);
+        return;
+      }
+    }
+    deflater.end();
+  }
+
+  private static List<Deflater> getPool(String encoding) {
+    return GZIP.equals(encoding) ? sGzipDeflaters : sDeflateDeflaters;
+  }
+
+  /**
+   * Returns a stream that codes what is written to it. Call finish() on it
+   * when done; that leaves the underlying stream open.
+   */
+  public static DeflaterOutputStream newOutputStream(OutputStream out,
+      String encoding, Deflater deflater) throws IOException {
+    if (GZIP.equals(encoding)) {
+      return new GzipOutputStream(out, deflater);
+    }
+    return new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+  }
+
+  /* GZIPOutputStream can't be given a deflater, so this frames it. */
+  private static class GzipOutputStream extends DeflaterOutputStream {
+    private final CRC32 mCrc = new CRC32();
+
+    GzipOutputStream(OutputStream out, Deflater deflater)
+        throws IOException {
+      super(out, deflater, BUFFER_SIZE);
+      out.write(GZIP_HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      super.write(b, off, len);
+      mCrc.update(b, off, len);
+    }
+
+    /* Ends the deflate data and adds the checksum and length. */
+    @Override
+    public void finish() throws IOException {
+      super.finish();
+      writeInt((int) mCrc.getValue());
+      writeInt(def.getTotalIn());
+    }
+
+    /* Little endian, as gzip wants. */
+    private void writeInt(int n) throws IOException {
+      out.write(new byte[] {(byte) n, (byte) (n >> 8), (byte) (n >> 16),
+          (byte) (n >> 24)});
+    }
+  }
+}
@@ -7,19 +7,30 @@ import android.database.sqlite.SQLiteOpenHelper;
 public class CookiesDatabaseOpenHelper extends SQLiteOpenHelper {
 
   public CookiesDatabaseOpenHelper(Context context) {
-    super(context, "cookies.db", null, 1);
+    super(context, "cookies.db", null, 2);
   }
 
   @Override
   public void onCreate(SQLiteDatabase database) {
     database.execSQL(
       "CREATE TABLE cookies(name STRING, value STRING, expiry INTEGER)");
+    createIndex(database);
   }
 
   @Override
-  public void onUpgrade(SQLiteDatabase arg0, int arg1, int arg2) {
-    // TODO Auto-generated method stub
+  public void onUpgrade(SQLiteDatabase database, int oldVersion,
+      int newVersion) {
+    if (oldVersion < 2) {
+      /* Version 1 stored garbage expiry times, start over. */
+      database.execSQL("DELETE FROM cookies");
+      createIndex(database);
+    }
+  }
 
+  /* The sweeper deletes by expiry. */
+  private static void createIndex(SQLiteDatabase database) {
+    database.execSQL(
+        "CREATE INDEX IF NOT EXISTS cookies_expiry ON cookies(expiry)");
   }
 
 }
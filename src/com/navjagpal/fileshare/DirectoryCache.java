@@ -0,0 +1,155 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import android.os.FileObserver;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Listings of recently browsed directories, keyed by path and modification
+ * time. Each cached directory is watched, so a listing is thrown away as soon
+ * as a file in it is created, deleted, moved or written, and a repeat
+ * listing costs a single stat of the directory.
+ *
+ * Every watch holds an inotify watch, so only a few directories are kept.
+ */
+class DirectoryCache {
+
+  private static final int MAX_DIRECTORIES = 64;
+
+  private static final int WATCHED_EVENTS = FileObserver.CREATE
+      | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.MOVED_TO
+      | FileObserver.CLOSE_WRITE | FileObserver.DELETE_SELF
+      | FileObserver.MOVE_SELF;
+
+  private static final Comparator<File> BY_NAME = new Comparator<File>() {
+    public int compare(File f1, File f2) {
+      return f1.getName().compareTo(f2.getName());
+    }
+  };
+
+  /* In access order, so the eldest entry is the least recently used. */
+  private final LinkedHashMap<String, Entry> mEntries =
+      new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  /**
+   * Returns the files in a directory sorted by name, from the cache if the
+   * directory has not changed since it was listed.
+   */
+  public Listing list(File directory) {
+    String path = directory.getAbsolutePath();
+    long lastModified = directory.lastModified();
+    Entry entry;
+    synchronized (this) {
+      entry = mEntries.get(path);
+      if (entry != null && !entry.mStale && entry.mListing != null
+          && entry.mListing.mLastModified == lastModified) {
+        return entry.mListing;
+      }
+      if (entry == null) {
+        entry = new Entry(path);
+        mEntries.put(path, entry);
+        trim();
+      }
+      /* Events from here on are for the listing we are about to read. */
+      entry.mStale = false;
+    }
+    Listing listing = scan(directory, lastModified);
+    synchronized (this) {
+      entry.mListing = listing;
+    }
+    return listing;
+  }
+
+  /* Stops watching the least recently used directories. */
+  private void trim() {
+    Iterator<Entry> entries = mEntries.values().iterator();
+    while (mEntries.size() > MAX_DIRECTORIES && entries.hasNext()) {
+      entries.next().stopWatching();
+      entries.remove();
+    }
+  }
+
+  private static Listing scan(File directory, long lastModified) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      files = new File[0];
+    }
+    Arrays.sort(files, BY_NAME);
+    String[] names = new String[files.length];
+    long[] sizes = new long[files.length];
+    for (int i = 0; i < files.length; i++) {
+      names[i] = files[i].getName();
+      sizes[i] = files[i].length();
+    }
+    return new Listing(directory.getAbsolutePath(), lastModified, names,
+        sizes);
+  }
+
+  /* A listing of a single file, which is not worth caching. */
+  public static Listing single(File file) {
+    return new Listing(file.getParent(), file.lastModified(),
+        new String[] {file.getName()}, new long[] {file.length()});
+  }
+
+  /**
+   * Files of a directory as parallel arrays, sorted by name. Never changed
+   * once created, so cursors can share it.
+   */
+  static class Listing {
+    final String mDirectory;
+    final long mLastModified;
+    final String[] mNames;
+    final long[] mSizes;
+
+    Listing(String directory, long lastModified, String[] names,
+        long[] sizes) {
+      mDirectory = directory;
+      mLastModified = lastModified;
+      mNames = names;
+      mSizes = sizes;
+    }
+
+    int size() {
+      return mNames.length;
+    }
+
+    String getPath(int i) {
+      return mDirectory.endsWith("/") ? mDirectory + mNames[i]
+          : mDirectory + "/" + mNames[i];
+    }
+  }
+
+  /* A cached listing and the watch that invalidates it. */
+  private static class Entry extends FileObserver {
+    Listing mListing;
+    volatile boolean mStale = true;
+
+    Entry(String path) {
+      super(path, WATCHED_EVENTS);
+      startWatching();
+    }
+
+    @Override
+    public void onEvent(int event, String path) {
+      mStale = true;
+    }
+  }
+}
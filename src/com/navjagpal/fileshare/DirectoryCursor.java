@@ -0,0 +1,109 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import android.database.AbstractCursor;
+import android.provider.OpenableColumns;
+
+/**
+ * Cursor over a {@link DirectoryCache.Listing}. Rows are read straight from
+ * the listing's arrays, nothing is copied or boxed per row.
+ */
+class DirectoryCursor extends AbstractCursor {
+
+  /* _id doesn't really mean anything but the system really wants it */
+  private static final String[] COLUMNS = {
+      "_id",
+      OpenableColumns.DISPLAY_NAME,
+      OpenableColumns.SIZE,
+      "_data"
+  };
+
+  private static final int COLUMN_ID = 0;
+  private static final int COLUMN_NAME = 1;
+  private static final int COLUMN_SIZE = 2;
+  private static final int COLUMN_DATA = 3;
+
+  private final DirectoryCache.Listing mListing;
+
+  DirectoryCursor(DirectoryCache.Listing listing) {
+    mListing = listing;
+  }
+
+  @Override
+  public int getCount() {
+    return mListing.size();
+  }
+
+  @Override
+  public String[] getColumnNames() {
+    return COLUMNS;
+  }
+
+  @Override
+  public String getString(int column) {
+    switch (column) {
+      case COLUMN_NAME:
+        return mListing.mNames[mPos];
+      case COLUMN_DATA:
+        return mListing.getPath(mPos);
+      case COLUMN_ID:
+      case COLUMN_SIZE:
+        return Long.toString(getLong(column));
+      default:
+        throw new IllegalArgumentException("Unknown column " + column);
+    }
+  }
+
+  @Override
+  public long getLong(int column) {
+    switch (column) {
+      case COLUMN_ID:
+        return mPos;
+      case COLUMN_SIZE:
+        return mListing.mSizes[mPos];
+      case COLUMN_NAME:
+      case COLUMN_DATA:
+        return Long.parseLong(getString(column));
+      default:
+        throw new IllegalArgumentException("Unknown column " + column);
+    }
+  }
+
+  @Override
+  public short getShort(int column) {
+    return (short) getLong(column);
+  }
+
+  @Override
+  public int getInt(int column) {
+    return (int) getLong(column);
+  }
+
+  @Override
+  public float getFloat(int column) {
+    return getLong(column);
+  }
+
+  @Override
+  public double getDouble(int column) {
+    return getLong(column);
+  }
+
+  @Override
+  public boolean isNull(int column) {
+    return false;
+  }
+}
@@ -0,0 +1,85 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * HttpEntity that compresses another entity while it is being sent. The
+ * compressed length is unknown up front, so it goes out chunked.
+ */
+public class EncodedEntity extends AbstractHttpEntity {
+
+  private final HttpEntity mEntity;
+  private final String mEncoding;
+
+  /**
+   * @param entity The content, consumed along with this entity.
+   * @param encoding ContentEncoding.GZIP or ContentEncoding.DEFLATE.
+   */
+  public EncodedEntity(HttpEntity entity, String encoding) {
+    mEntity = entity;
+    mEncoding = encoding;
+    setContentType(entity.getContentType());
+    setContentEncoding(encoding);
+    setChunked(true);
+  }
+
+  public long getContentLength() {
+    return -1;
+  }
+
+  public boolean isRepeatable() {
+    return mEntity.isRepeatable();
+  }
+
+  public boolean isStreaming() {
+    return mEntity.isStreaming();
+  }
+
+  /* Compresses the whole content into memory, only for callers that need it. */
+  public InputStream getContent() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeTo(out);
+    return new ByteArrayInputStream(out.toByteArray());
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    Deflater deflater = ContentEncoding.obtainDeflater(mEncoding);
+    try {
+      DeflaterOutputStream encoded = ContentEncoding.newOutputStream(out,
+          mEncoding, deflater);
+      mEntity.writeTo(encoded);
+      encoded.finish();
+      out.flush();
+    } finally {
+      ContentEncoding.recycle(mEncoding, deflater);
+    }
+  }
+
+  @Override
+  public void consumeContent() throws IOException {
+    mEntity.consumeContent();
+  }
+}
@@ -0,0 +1,118 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Compressed copies of shared files, keyed by coding and entity tag. A copy
+ * is kept the first time a file is sent compressed that way, and repeat
+ * downloads are sent from it without compressing anything again.
+ *
+ * Copies may be in use by responses still being sent. Records are reference
+ * counted and their files are only deleted once the last response using
+ * them has been sent.
+ */
+class EncodedFileCache
+    extends RefCountedCache<String, EncodedFileCache.Record> {
+
+  private static final String TAG = "FileSharer EncodedFileCache";
+
+  /* Larger files are compressed while they are sent, and not kept. */
+  private static final long MAX_SOURCE_LENGTH = 16 * 1024 * 1024;
+
+  private static final long MAX_ENCODED_BYTES = 32 * 1024 * 1024;
+
+  private static EncodedFileCache sInstance;
+
+  private final File mDirectory;
+
+  private long mEncodedBytes;
+
+  private EncodedFileCache(File directory) {
+    mDirectory = directory;
+  }
+
+  /**
+   * Returns the cache, creating it under the given directory on first use.
+   * Files left behind by an earlier run of the process are deleted.
+   */
+  static synchronized EncodedFileCache getInstance(File cacheDir) {
+    if (sInstance == null) {
+      File directory = new File(cacheDir, "encoded");
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        Log.w(TAG, "Could not create " + directory);
+      }
+      File[] stale = directory.listFiles();
+      if (stale != null) {
+        for (File file : stale) {
+          file.delete();
+        }
+      }
+      sInstance = new EncodedFileCache(directory);
+    }
+    return sInstance;
+  }
+
+  /* Whether a file of this length is worth keeping compressed. */
+  static boolean shouldCache(long length) {
+    return length <= MAX_SOURCE_LENGTH;
+  }
+
+  static String getKey(String encoding, String entityTag) {
+    return encoding + ":" + entityTag;
+  }
+
+  /* Returns a new file to compress a file into. */
+  File createEncodedFile() throws IOException {
+    return File.createTempFile("file", ".gz", mDirectory);
+  }
+
+  @Override
+  protected boolean isOverBudget() {
+    return mEncodedBytes > MAX_ENCODED_BYTES;
+  }
+
+  @Override
+  protected void onAdded(Record record) {
+    mEncodedBytes += record.mLength;
+  }
+
+  @Override
+  protected void onEvicted(Record record) {
+    mEncodedBytes -= record.mLength;
+  }
+
+  @Override
+  protected void discard(Record record) {
+    if (!record.mEncoded.delete()) {
+      Log.w(TAG, "Could not delete " + record.mEncoded);
+    }
+  }
+
+  /* A compressed copy of one version of a file. */
+  static class Record extends RefCountedCache.Entry {
+    final File mEncoded;
+    final long mLength;
+
+    Record(File encoded, long length) {
+      mEncoded = encoded;
+      mLength = length;
+    }
+  }
+}
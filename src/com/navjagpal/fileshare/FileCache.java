@@ -0,0 +1,169 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recently downloaded shared files, keyed by file id: what their row says
+ * and an open channel to their content. Every download of a popular file
+ * shares one channel. Responses only use positional reads and transferTo on
+ * it, which leave its position alone, so they don't get in each other's way.
+ *
+ * Small files on disk are mapped into memory instead, and their channel is
+ * closed right away. They hold no file descriptor, so many more of them can
+ * be kept, up to a budget of mapped bytes. The least recently used files are
+ * dropped when there are too many open channels or mapped bytes.
+ *
+ * Entries are reference counted, and a channel is only closed once its entry
+ * has been dropped and the last response using it has been sent. The web
+ * server drops everything whenever shared files change.
+ */
+class FileCache extends RefCountedCache<Long, FileCache.Entry> {
+
+  private static final String TAG = "FileSharer FileCache";
+
+  /* Each open channel holds a file descriptor. */
+  private static final int MAX_OPEN_FILES = 32;
+
+  /* Larger files are sent from their channel. */
+  private static final int MAX_MAPPED_FILE_SIZE = 64 * 1024;
+
+  private final long mMaxMappedBytes;
+  private int mOpenFiles;
+  private long mMappedBytes;
+
+  private final AtomicLong mHits = new AtomicLong();
+  private final AtomicLong mMisses = new AtomicLong();
+
+  /**
+   * @param maxMappedBytes Budget for mapped files, or 0 to map none.
+   */
+  FileCache(long maxMappedBytes) {
+    mMaxMappedBytes = maxMappedBytes;
+  }
+
+  /* Whether a file on disk of this length should be mapped. */
+  boolean shouldMap(long length) {
+    return length > 0 && length <= MAX_MAPPED_FILE_SIZE
+        && length <= mMaxMappedBytes;
+  }
+
+  @Override
+  Entry acquire(Long fileId) {
+    Entry entry = super.acquire(fileId);
+    if (entry == null) {
+      mMisses.incrementAndGet();
+    } else {
+      mHits.incrementAndGet();
+    }
+    return entry;
+  }
+
+  synchronized String getStatistics() {
+    return "hits=" + mHits.get() + " misses=" + mMisses.get()
+        + " open=" + mOpenFiles + " mapped=" + mMappedBytes / 1024 + "KB";
+  }
+
+  @Override
+  protected boolean isOverBudget() {
+    return mOpenFiles > MAX_OPEN_FILES || mMappedBytes > mMaxMappedBytes;
+  }
+
+  /* Only files of whichever kind is over budget are dropped. */
+  @Override
+  protected boolean shouldEvict(Entry eldest) {
+    return eldest.mMapped != null ? mMappedBytes > mMaxMappedBytes
+        : mOpenFiles > MAX_OPEN_FILES;
+  }
+
+  @Override
+  protected void onAdded(Entry entry) {
+    if (entry.mMapped != null) {
+      mMappedBytes += entry.mLength;
+    } else {
+      mOpenFiles++;
+    }
+  }
+
+  @Override
+  protected void onEvicted(Entry entry) {
+    if (entry.mMapped != null) {
+      mMappedBytes -= entry.mLength;
+    } else {
+      mOpenFiles--;
+    }
+  }
+
+  /* Mappings are released by the garbage collector, only channels close. */
+  @Override
+  protected void discard(Entry entry) {
+    if (entry.mChannel == null) {
+      return;
+    }
+    try {
+      entry.mChannel.close();
+    } catch (IOException e) {
+      Log.d(TAG, "Problem closing " + entry.mData + " " + e.toString());
+    }
+  }
+
+  /* A shared file, opened. */
+  static class Entry extends RefCountedCache.Entry {
+    final String mName;
+    final Uri mData;
+    final String mContentType;
+    /* The file on disk, or null if it belongs to another provider. */
+    final File mFile;
+    /* Exactly one of these is set. */
+    final FileChannel mChannel;
+    final ByteBuffer mMapped;
+    final long mLength;
+    final long mLastModified;
+    final String mEntityTag;
+
+    Entry(String name, Uri data, String contentType, File file,
+        FileChannel channel, ByteBuffer mapped, long length,
+        long lastModified, String entityTag) {
+      mName = name;
+      mData = data;
+      mContentType = contentType;
+      mFile = file;
+      mChannel = channel;
+      mMapped = mapped;
+      mLength = length;
+      mLastModified = lastModified;
+      mEntityTag = entityTag;
+    }
+
+    /**
+     * Whether a file on disk is still what we opened. Content from other
+     * providers can't be checked and is trusted until the row changes. The
+     * channel itself is gone if a thread using it was interrupted.
+     */
+    boolean isCurrent() {
+      return (mChannel == null || mChannel.isOpen()) && (mFile == null
+          || (mFile.length() == mLength
+              && mFile.lastModified() == mLastModified));
+    }
+  }
+}
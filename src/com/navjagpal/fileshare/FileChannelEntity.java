@@ -0,0 +1,171 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * HttpEntity for a region of a file. When the client socket has a channel,
+ * the web server calls {@link #transferTo} so the kernel copies the file
+ * straight to the socket; otherwise the region is streamed through
+ * {@link #writeTo}.
+ */
+public class FileChannelEntity extends AbstractHttpEntity
+    implements TransferableEntity {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final FileChannel mChannel;
+  private final long mPosition;
+  private final long mLength;
+
+  /**
+   * @param channel The file, released once the entity has been sent.
+   * @param position Offset of the first byte to send.
+   * @param length Number of bytes to send.
+   */
+  public FileChannelEntity(FileChannel channel, long position, long length) {
+    mChannel = channel;
+    mPosition = position;
+    mLength = length;
+  }
+
+  public long getContentLength() {
+    return mLength;
+  }
+
+  /* The channel is closed once the entity has been consumed. */
+  public boolean isRepeatable() {
+    return false;
+  }
+
+  public boolean isStreaming() {
+    return false;
+  }
+
+  public InputStream getContent() throws IOException {
+    return new RegionInputStream();
+  }
+
+  /**
+   * Copies the region to the target channel without passing it through the
+   * Java heap.
+   */
+  public void transferTo(WritableByteChannel target) throws IOException {
+    transferRegion(mChannel, mPosition, mLength, target);
+  }
+
+  public void prepareTransfer() {
+  }
+
+  public long transferTo(long offset, WritableByteChannel target)
+      throws IOException {
+    return transferSome(mChannel, mPosition + offset, mLength - offset,
+        target);
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    copyRegion(mChannel, mPosition, mLength, out, new byte[BUFFER_SIZE]);
+    out.flush();
+  }
+
+  /* Sends part of a file to a channel without copying it into the heap. */
+  static void transferRegion(FileChannel channel, long position, long length,
+      WritableByteChannel target) throws IOException {
+    long written = 0;
+    while (written < length) {
+      long count = channel.transferTo(position + written, length - written,
+          target);
+      if (count <= 0) {
+        throw new IOException("File shrank while it was being sent");
+      }
+      written += count;
+    }
+  }
+
+  /**
+   * Sends what a non-blocking channel takes of part of a file.
+   *
+   * @return The number of bytes sent, 0 if the channel is full.
+   */
+  static long transferSome(FileChannel channel, long position, long length,
+      WritableByteChannel target) throws IOException {
+    long count = channel.transferTo(position, length, target);
+    if (count <= 0 && channel.size() < position + length) {
+      throw new IOException("File shrank while it was being sent");
+    }
+    return count;
+  }
+
+  /* Copies part of a file to a stream using positional reads. */
+  static void copyRegion(FileChannel channel, long position, long length,
+      OutputStream out, byte[] buf) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(buf);
+    long written = 0;
+    while (written < length) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buf.length, length - written));
+      int count = channel.read(buffer, position + written);
+      if (count <= 0) {
+        throw new IOException("File shrank while it was being sent");
+      }
+      out.write(buf, 0, count);
+      written += count;
+    }
+  }
+
+  /* Releases the file once the response has been sent. */
+  @Override
+  public void consumeContent() throws IOException {
+    release();
+  }
+
+  /* Closes the file. Overridden when the channel is shared. */
+  protected void release() throws IOException {
+    mChannel.close();
+  }
+
+  /* Reads the region with positional reads, leaving the channel alone. */
+  private class RegionInputStream extends InputStream {
+    private long mOffset;
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == 1 ? (b[0] & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (mOffset >= mLength) {
+        return -1;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(b, off,
+          (int) Math.min(len, mLength - mOffset));
+      int count = mChannel.read(buffer, mPosition + mOffset);
+      if (count > 0) {
+        mOffset += count;
+      }
+      return count;
+    }
+  }
+}
@@ -16,19 +16,13 @@ package com.navjagpal.fileshare;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.LinkedList;
 import java.util.List;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.database.Cursor;
-import android.database.MatrixCursor;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
-import android.provider.OpenableColumns;
 
 
 public class FileProvider extends ContentProvider {
@@ -38,6 +32,9 @@ public class FileProvider extends ContentProvider {
   public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.navjagpal.file";
   public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.navjagpal.file";
 
+  /* Shared by every provider instance in the process. */
+  private static final DirectoryCache sDirectoryCache = new DirectoryCache();
+
   @Override
   public boolean onCreate() {
     // TODO Auto-generated method stub
@@ -80,49 +77,19 @@ public class FileProvider extends ContentProvider {
     throw new UnsupportedOperationException("Updates are not supported.");
   }
 
-  /* Add a row to the matrix cursor */
-  private void addRow(Collection<Object[]> fileList, File file, int id,
-		  String path) {
-    String fileName = file.getName();
-    int fileSize = (int)file.length();
-    fileList.add(new Object[] {id, fileName, fileSize, path});
-  }
-
-  /* Return a cursor for files in the specified path */
+  /* Return a cursor for files in the specified path, sorted by name */
   private Cursor getCursorForFiles(String path) {
-    /* _id doesn't really mean anything but the system really wants it */
-    String[] columns = { 
-        "_id",
-        OpenableColumns.DISPLAY_NAME,
-        OpenableColumns.SIZE,
-        "_data"
-    };
-
     File baseDir = new File(path);
-    LinkedList<Object[]> fileList = new LinkedList<Object[]>();
+    DirectoryCache.Listing listing;
     if (baseDir.isDirectory()) {
-      File[] files = baseDir.listFiles();
-      int id = 0;
-      for (File file: files) {		
-        addRow(fileList, file, id, file.getAbsolutePath());
-        id++;
-      }
+      listing = sDirectoryCache.list(baseDir);
     } else if (baseDir.isFile()) {
-      addRow(fileList, baseDir, 0, baseDir.getAbsolutePath());
+      listing = DirectoryCache.single(baseDir);
+    } else {
+      listing = new DirectoryCache.Listing(path, 0, new String[0],
+          new long[0]);
     }
-   
-    // Sort listing by display name.
-    Collections.sort(fileList, new Comparator<Object[]>() {
-    	public int compare(Object[] r1, Object[] r2) {
-    		return ((String) r1[1]).compareTo((String) r2[2]);
-    	}
-    });
-    
-    MatrixCursor c = new MatrixCursor(columns);
-    for (Object[] row : fileList) {
-    	c.addRow(row);
-    }
-    return c;
+    return new DirectoryCursor(listing);
   }
 
   @Override
@@ -131,6 +98,18 @@ public class FileProvider extends ContentProvider {
     return openFileHelper(uri, mode);
   }
 
+  /**
+   * Returns the file on disk behind a uri from this provider.
+   *
+   * @return The file, or null if the uri belongs to another provider.
+   */
+  public static File getFile(Uri uri) {
+    if (!AUTHORITY.equals(uri.getAuthority())) {
+      return null;
+    }
+    return new File(getPath(uri));
+  }
+
   /* Construct a file path based on the uri */
   public static String getPath(Uri uri) {
     List<String> segments = uri.getPathSegments();
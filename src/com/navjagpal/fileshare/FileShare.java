@@ -23,6 +23,7 @@ import java.net.UnknownHostException;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -30,12 +31,9 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.database.Cursor;
-import android.database.SQLException;
 import android.net.Uri;
 import android.net.wifi.WifiManager;
 import android.os.Bundle;
-import android.provider.OpenableColumns;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
@@ -57,6 +55,30 @@ public class FileShare extends Activity {
   private Uri mFileToShare;
 
   private static final int DIALOG_PASSWORD = 0;
+  private static final int DIALOG_SHARE_PROGRESS = 1;
+
+  private ProgressDialog mShareProgressDialog;
+
+  /* Runs on the share job's thread, updates the dialog on ours. */
+  private final ShareJob.Listener mShareListener = new ShareJob.Listener() {
+    public void onProgress(final ShareJob job) {
+      runOnUiThread(new Runnable() {
+        public void run() {
+          if (mShareProgressDialog != null) {
+            mShareProgressDialog.setMessage(getShareProgressMessage(job));
+          }
+        }
+      });
+    }
+
+    public void onFinished(final ShareJob job) {
+      runOnUiThread(new Runnable() {
+        public void run() {
+          removeDialog(DIALOG_SHARE_PROGRESS);
+        }
+      });
+    }
+  };
 
   private final View.OnClickListener mAddFileListener = new View.OnClickListener() {
     public void onClick(View v) {
@@ -193,6 +215,31 @@ public class FileShare extends Activity {
       // TODO Auto-generated catch block
       e.printStackTrace();
     }
+
+    /* Finish sharing a directory if we were killed while doing it. */
+    ShareJob.resumePending(this);
+  }
+
+  @Override
+  protected void onResume() {
+    super.onResume();
+    ShareJob job = ShareJob.getCurrent();
+    if (job != null) {
+      job.setListener(mShareListener);
+      showDialog(DIALOG_SHARE_PROGRESS);
+      if (job.isFinished()) {
+        removeDialog(DIALOG_SHARE_PROGRESS);
+      }
+    }
+  }
+
+  @Override
+  protected void onPause() {
+    super.onPause();
+    ShareJob job = ShareJob.getCurrent();
+    if (job != null) {
+      job.setListener(null);
+    }
   }
 
   @Override
@@ -221,34 +268,25 @@ public class FileShare extends Activity {
   /**
    * Adds a file to a shared folder. If the provided file is actually a 
    * folder, all files under that folder will be added to the shared folder.
-   * This includes files from sub-directories as well.
+   * This includes files from sub-directories as well. Files are added in the
+   * background while a progress dialog is shown, after any files still being
+   * added.
    * 
    * @param file Uri for file.
    * @param folder Uri for shared folder.
    */
   private void addFileToFolder(Uri file, Uri folder) {
-    /* The URI could be a folder. If it is, assume we want all files under that
-     * folder.
-     */
-    if (getContentResolver().getType(file).equals(
-        FileProvider.CONTENT_TYPE)) {
-      Cursor c = managedQuery(
-          file, new String[] {OpenableColumns.DISPLAY_NAME},
-          null, null, null);
-      while (c.moveToNext()) {
-        String filename = c.getString(c.getColumnIndex(
-            OpenableColumns.DISPLAY_NAME));
-        Uri uri = Uri.withAppendedPath(
-            file, filename);
-        addFileToFolder(uri, folder);
-      }
-    } else {
-      try {
-        FileSharingProvider.addFileToFolder(getContentResolver(), file, folder);
-      } catch (SQLException exception) {
-        Log.w(TAG, "Error adding file " + file + " to folder " + folder);
-      }
-    }
+    ShareJob job = ShareJob.start(this, file, folder);
+    job.setListener(mShareListener);
+    showDialog(DIALOG_SHARE_PROGRESS);
+  }
+
+  private static String getShareProgressMessage(ShareJob job) {
+    String message = "Added " + job.getAddedCount() + " of "
+        + job.getFoundCount() + " files found (" + job.getFilesPerSecond()
+        + " files/s)";
+    int queued = ShareJob.getQueuedCount();
+    return queued > 0 ? message + ", " + queued + " more queued" : message;
   }
 
   public static String getIPAddress(Context context) {
@@ -309,14 +347,30 @@ public class FileShare extends Activity {
               editor.putString(FileSharingService.PREFS_PASSWORD, passwordText
                   .getText().toString());
               editor.commit();
-              /* The password has changed, delete all cookies. */
-              new CookiesDatabaseOpenHelper(FileShare.this).getWritableDatabase()
-              .delete("cookies", null, null);
+              /* The password has changed, log everybody out. */
+              SignedSessionManager.rotateKey(preferences);
             }
             passwordDialog.dismiss();
           }
         });
         break;
+      case DIALOG_SHARE_PROGRESS:
+        mShareProgressDialog = new ProgressDialog(this);
+        mShareProgressDialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
+        mShareProgressDialog.setIndeterminate(true);
+        mShareProgressDialog.setMessage("Looking for files...");
+        mShareProgressDialog.setCancelable(false);
+        mShareProgressDialog.setButton("Cancel",
+            new DialogInterface.OnClickListener() {
+          public void onClick(DialogInterface dialog, int which) {
+            ShareJob job = ShareJob.getCurrent();
+            if (job != null) {
+              job.cancel();
+            }
+          }
+        });
+        dialog = mShareProgressDialog;
+        break;
       default:
         dialog = null;
     }
@@ -14,7 +14,10 @@
 
 package com.navjagpal.fileshare;
 
+import java.io.File;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.ContentProvider;
 import android.content.ContentResolver;
@@ -23,10 +26,12 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.provider.BaseColumns;
 import android.provider.OpenableColumns;
@@ -39,21 +44,37 @@ public class FileSharingProvider extends ContentProvider {
   private static final String TAG = "FileSharingProvider";
 
   private static final String DATABASE_NAME = "file_sharer.db";
-  private static final int DATABASE_VERSION = 2;
+  private static final int DATABASE_VERSION = 6;
   private static final String FOLDERS_TABLE_NAME = "folders";
   private static final String FILES_TABLE_NAME = "files";
+  private static final String CHANGES_TABLE_NAME = "changes";
+
+  private static final int REVALIDATE_PAGE_SIZE = 500;
+
+  /* Changes kept for clients catching up, older ones are dropped. */
+  private static final int MAX_CHANGES = 10000;
 
   /* Internal codes for dealing with different types */
   private static final int FOLDERS = 1;
   private static final int FILE = 2;
   private static final int FOLDER = 3;
   private static final int FILES = 4;
+  private static final int CHANGES = 5;
 
   private static HashMap<String, String> sFoldersProjectionMap;
   private static HashMap<String, String> sFilesProjectionMap;
 
   private static final UriMatcher sUriMatcher;
 
+  /* Bumped on every change to shared folders or files. */
+  private static final AtomicLong sVersion = new AtomicLong();
+
+  /* Notified whenever the version is bumped. */
+  private static final Object sVersionMonitor = new Object();
+
+  /* Tells versions from different runs of the process apart. */
+  private static final long sEpoch = System.currentTimeMillis();
+
   /* Folder related constants */
   public interface Folders {
 
@@ -77,6 +98,48 @@ public class FileSharingProvider extends ContentProvider {
     public interface Columns extends BaseColumns, OpenableColumns {
       public static final String _DATA = "_data";
       public static final String FOLDER_ID = "folder_id";
+      public static final String DATE_MODIFIED = "date_modified";
+      public static final String MIME_TYPE = "mime_type";
+    }
+
+    /* Query parameter limiting the number of rows returned. */
+    public static final String QUERY_LIMIT = "limit";
+
+    /**
+     * Update parameter for writes that only correct what we know about a
+     * file, its size, date or type. Such updates are not changes clients
+     * need to hear about, so they are not logged and nobody is notified.
+     */
+    public static final String QUERY_CACHE_ONLY = "cache_only";
+  }
+
+  /**
+   * Inserts, updates and deletes of folders and files, in order. The _id of
+   * a change is its sequence number, which only ever grows.
+   */
+  public interface Changes {
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY
+        + "/changes");
+
+    public static final String CONTENT_TYPE =
+        "vnd.android.cursor.dir/vnd.navjagpal.sharedchange";
+
+    public static final String TYPE_FOLDER = "folder";
+    public static final String TYPE_FILE = "file";
+
+    public static final String OPERATION_INSERT = "insert";
+    public static final String OPERATION_UPDATE = "update";
+    public static final String OPERATION_DELETE = "delete";
+
+    public interface Columns extends BaseColumns {
+      /* TYPE_FOLDER or TYPE_FILE. */
+      public static final String TYPE = "type";
+      /* OPERATION_INSERT, OPERATION_UPDATE or OPERATION_DELETE. */
+      public static final String OPERATION = "operation";
+      /* _id of the folder or file that changed. */
+      public static final String ROW_ID = "row_id";
+      /* Folder of the file that changed, or the folder itself. */
+      public static final String FOLDER_ID = "folder_id";
     }
   }
 
@@ -91,72 +154,246 @@ public class FileSharingProvider extends ContentProvider {
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-      db.execSQL("CREATE TABLE " + FOLDERS_TABLE_NAME + " ("
-          + Folders.Columns._ID + " INTEGER PRIMARY KEY,"
-          + Folders.Columns.DISPLAY_NAME + " TEXT,"
-          + Folders.Columns.PASSWORD + " TEXT"
-          + ");");
-      db.execSQL("CREATE TABLE " + FILES_TABLE_NAME + " ("
-          + Files.Columns._ID + " INTEGER PRIMARY KEY,"
-          + Files.Columns.FOLDER_ID + " INTEGER,"
-          + Files.Columns.DISPLAY_NAME + " TEXT,"
-          + Files.Columns._DATA + " TEXT"
-          + ");");
+      createTables(db, FOLDERS_TABLE_NAME, FILES_TABLE_NAME);
+      createIndexes(db);
+      createChangeLog(db);
       db.execSQL("INSERT INTO " + FOLDERS_TABLE_NAME + " VALUES(0, 'Public', null)");
     }
 
+    /**
+     * Version 2 added unique constraints, which needs the tables rebuilt.
+     * Version 3 adds indexes, and rebuilds tables that are still missing the
+     * unique constraints: onCreate used to leave them out, so most databases
+     * stamped version 2 never had them. Version 4 adds file sizes and dates,
+     * filled in for files on disk. Version 5 adds the change log. Version 6
+     * adds MIME types and logs updates of the columns clients show. The whole
+     * upgrade runs in one transaction and rows are copied with a single
+     * INSERT ... SELECT per table.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
       Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-          + newVersion + ", which will destroy all old data");
-      
+          + newVersion);
+      db.beginTransaction();
+      try {
+        if (oldVersion >= 2) {
+          /* Add the new columns first, a rebuild then copies them across. */
+          if (oldVersion < 4) {
+            db.execSQL("ALTER TABLE " + FILES_TABLE_NAME + " ADD COLUMN "
+                + Files.Columns.SIZE + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + FILES_TABLE_NAME + " ADD COLUMN "
+                + Files.Columns.DATE_MODIFIED + " INTEGER NOT NULL DEFAULT 0");
+          }
+          if (oldVersion < 6) {
+            db.execSQL("ALTER TABLE " + FILES_TABLE_NAME + " ADD COLUMN "
+                + Files.Columns.MIME_TYPE + " TEXT");
+          }
+        }
+        boolean rebuild = oldVersion < 2 || !hasUniqueConstraint(db,
+            FOLDERS_TABLE_NAME) || !hasUniqueConstraint(db, FILES_TABLE_NAME);
+        if (rebuild) {
+          rebuildTables(db, oldVersion);
+        }
+        if (rebuild || oldVersion < 4) {
+          createIndexes(db);
+        }
+        if (oldVersion < 4) {
+          fillFileStats(db);
+        }
+        if (oldVersion < 6) {
+          /* Before the update triggers exist, so this is not logged. */
+          fillMimeTypes(db);
+        }
+        if (oldVersion < 5) {
+          createChangeLog(db);
+        } else if (oldVersion < 6) {
+          createUpdateTriggers(db);
+        }
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+    }
+
+    /* A UNIQUE constraint is backed by an index SQLite names itself. */
+    private static boolean hasUniqueConstraint(SQLiteDatabase db,
+        String table) {
+      return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master"
+          + " WHERE type='index' AND tbl_name=? AND name LIKE"
+          + " 'sqlite_autoindex_%'", new String[] {table}) > 0;
+    }
+
+    /**
+     * Recreates the tables with their constraints and copies the rows over,
+     * dropping duplicates the constraints don't allow. Indexes are dropped
+     * with the old tables and have to be created again.
+     */
+    private static void rebuildTables(SQLiteDatabase db, int oldVersion) {
       /* Move existing tables out of the way. */
       db.execSQL("ALTER TABLE " + FOLDERS_TABLE_NAME
           + " RENAME TO " + FOLDERS_TABLE_NAME + "_TEMP");
       db.execSQL("ALTER TABLE " + FILES_TABLE_NAME
           + " RENAME TO " + FILES_TABLE_NAME + "_TEMP");
-      
+
       /* Create the new tables. */
       createTables(db, FOLDERS_TABLE_NAME, FILES_TABLE_NAME);
-      
+
       /* Copy data from old tables to new tables. */
-      Cursor c = db.query(
-          FOLDERS_TABLE_NAME + "_TEMP",
-          null, null, null, null, null, null);
-      while (c.moveToNext()) {
-        ContentValues values = new ContentValues();
-        values.put(Folders.Columns._ID, c.getInt(c.getColumnIndex(
-            Folders.Columns._ID)));
-        values.put(Folders.Columns.DISPLAY_NAME, c.getString(c.getColumnIndex(
-            Folders.Columns.DISPLAY_NAME)));
-        values.put(Folders.Columns.PASSWORD, c.getString(c.getColumnIndex(
-            Folders.Columns.PASSWORD)));
-        db.insert(FOLDERS_TABLE_NAME, Folders.Columns.DISPLAY_NAME, values);
+      String folderColumns = Folders.Columns._ID + ","
+          + Folders.Columns.DISPLAY_NAME + "," + Folders.Columns.PASSWORD;
+      copyTable(db, FOLDERS_TABLE_NAME, folderColumns);
+      String fileColumns = Files.Columns._ID + ","
+          + Files.Columns.FOLDER_ID + "," + Files.Columns.DISPLAY_NAME + ","
+          + Files.Columns._DATA;
+      if (oldVersion >= 2) {
+        fileColumns += "," + Files.Columns.SIZE + ","
+            + Files.Columns.DATE_MODIFIED + "," + Files.Columns.MIME_TYPE;
       }
-      
-      c.close();
-      c = db.query(
-          FILES_TABLE_NAME + "_TEMP",
-          null, null, null, null, null, null);
-      while (c.moveToNext()) {
-        ContentValues values = new ContentValues();
-        values.put(Files.Columns._ID, c.getInt(c.getColumnIndex(
-            Files.Columns._ID)));
-        values.put(Files.Columns.FOLDER_ID, c.getInt(c.getColumnIndex(
-            Files.Columns.FOLDER_ID)));
-        values.put(Files.Columns.DISPLAY_NAME, c.getString(c.getColumnIndex(
-            Files.Columns.DISPLAY_NAME)));
-        values.put(Files.Columns._DATA, c.getString(c.getColumnIndex(
-            Files.Columns._DATA)));
-        db.insert(FILES_TABLE_NAME, Files.Columns.DISPLAY_NAME, values);
-      }
-      c.close();
-      
+      copyTable(db, FILES_TABLE_NAME, fileColumns);
+
       /* Delete the temp tables. */
       db.execSQL("DROP TABLE " + FOLDERS_TABLE_NAME + "_TEMP");
       db.execSQL("DROP TABLE " + FILES_TABLE_NAME + "_TEMP");
     }
 
+    private static void copyTable(SQLiteDatabase db, String table,
+        String columns) {
+      SQLiteStatement copy = db.compileStatement("INSERT OR IGNORE INTO "
+          + table + " (" + columns + ") SELECT " + columns + " FROM "
+          + table + "_TEMP");
+      try {
+        copy.execute();
+      } finally {
+        copy.close();
+      }
+    }
+
+    /**
+     * Creates the changes table and the triggers that fill it, so every
+     * insert and delete is logged in the same transaction whichever way it
+     * reaches the database. AUTOINCREMENT keeps sequence numbers from being
+     * reused once old changes are dropped.
+     */
+    private static void createChangeLog(SQLiteDatabase db) {
+      db.execSQL("CREATE TABLE " + CHANGES_TABLE_NAME + " ("
+          + Changes.Columns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+          + Changes.Columns.TYPE + " TEXT,"
+          + Changes.Columns.OPERATION + " TEXT,"
+          + Changes.Columns.ROW_ID + " INTEGER,"
+          + Changes.Columns.FOLDER_ID + " INTEGER"
+          + ");");
+      createChangeTrigger(db, FOLDERS_TABLE_NAME, Changes.TYPE_FOLDER,
+          Folders.Columns._ID);
+      createChangeTrigger(db, FILES_TABLE_NAME, Changes.TYPE_FILE,
+          Files.Columns.FOLDER_ID);
+      createUpdateTriggers(db);
+      db.execSQL("CREATE TRIGGER " + CHANGES_TABLE_NAME + "_trim "
+          + "AFTER INSERT ON " + CHANGES_TABLE_NAME + " BEGIN DELETE FROM "
+          + CHANGES_TABLE_NAME + " WHERE " + Changes.Columns._ID + "<=NEW."
+          + Changes.Columns._ID + "-" + MAX_CHANGES + "; END");
+    }
+
+    private static void createChangeTrigger(SQLiteDatabase db, String table,
+        String type, String folderColumn) {
+      String columns = Changes.Columns.TYPE + "," + Changes.Columns.OPERATION
+          + "," + Changes.Columns.ROW_ID + "," + Changes.Columns.FOLDER_ID;
+      db.execSQL("CREATE TRIGGER " + table + "_insert AFTER INSERT ON " + table
+          + " BEGIN INSERT INTO " + CHANGES_TABLE_NAME + " (" + columns
+          + ") VALUES ('" + type + "','" + Changes.OPERATION_INSERT + "',NEW."
+          + BaseColumns._ID + ",NEW." + folderColumn + "); END");
+      db.execSQL("CREATE TRIGGER " + table + "_delete AFTER DELETE ON " + table
+          + " BEGIN INSERT INTO " + CHANGES_TABLE_NAME + " (" + columns
+          + ") VALUES ('" + type + "','" + Changes.OPERATION_DELETE + "',OLD."
+          + BaseColumns._ID + ",OLD." + folderColumn + "); END");
+    }
+
+    /**
+     * Only updates of columns clients show are logged. Sizes, dates and
+     * types are corrected as files are served, and logging those would have
+     * every client fetch again files that did not change for them.
+     */
+    private static void createUpdateTriggers(SQLiteDatabase db) {
+      createUpdateTrigger(db, FOLDERS_TABLE_NAME, Changes.TYPE_FOLDER,
+          Folders.Columns._ID, Folders.Columns.DISPLAY_NAME + ","
+          + Folders.Columns.PASSWORD);
+      createUpdateTrigger(db, FILES_TABLE_NAME, Changes.TYPE_FILE,
+          Files.Columns.FOLDER_ID, Files.Columns.DISPLAY_NAME + ","
+          + Files.Columns.FOLDER_ID + "," + Files.Columns._DATA);
+    }
+
+    private static void createUpdateTrigger(SQLiteDatabase db, String table,
+        String type, String folderColumn, String columns) {
+      db.execSQL("CREATE TRIGGER " + table + "_update AFTER UPDATE OF "
+          + columns + " ON " + table + " BEGIN INSERT INTO "
+          + CHANGES_TABLE_NAME + " ("
+          + Changes.Columns.TYPE + "," + Changes.Columns.OPERATION + ","
+          + Changes.Columns.ROW_ID + "," + Changes.Columns.FOLDER_ID
+          + ") VALUES ('" + type + "','" + Changes.OPERATION_UPDATE + "',NEW."
+          + BaseColumns._ID + ",NEW." + folderColumn + "); END");
+    }
+
+    /* Guesses the types of files shared before we kept them. */
+    private static void fillMimeTypes(SQLiteDatabase db) {
+      SQLiteStatement update = db.compileStatement("UPDATE " + FILES_TABLE_NAME
+          + " SET " + Files.Columns.MIME_TYPE + "=? WHERE " + Files.Columns._ID
+          + "=?");
+      Cursor c = db.query(FILES_TABLE_NAME,
+          new String[] {Files.Columns._ID, Files.Columns.DISPLAY_NAME},
+          null, null, null, null, null);
+      try {
+        while (c.moveToNext()) {
+          update.bindString(1, getMimeType(c.getString(1)));
+          update.bindLong(2, c.getLong(0));
+          update.execute();
+        }
+      } finally {
+        c.close();
+        update.close();
+      }
+    }
+
+    /* Stats the files on disk that were shared before we kept sizes. */
+    private static void fillFileStats(SQLiteDatabase db) {
+      SQLiteStatement update = db.compileStatement("UPDATE " + FILES_TABLE_NAME
+          + " SET " + Files.Columns.SIZE + "=?," + Files.Columns.DATE_MODIFIED
+          + "=? WHERE " + Files.Columns._ID + "=?");
+      Cursor c = db.query(FILES_TABLE_NAME,
+          new String[] {Files.Columns._ID, Files.Columns._DATA},
+          null, null, null, null, null);
+      try {
+        while (c.moveToNext()) {
+          File file = FileProvider.getFile(Uri.parse(c.getString(1)));
+          if (file != null && file.isFile()) {
+            update.bindLong(1, file.length());
+            update.bindLong(2, file.lastModified());
+            update.bindLong(3, c.getLong(0));
+            update.execute();
+          }
+        }
+      } finally {
+        c.close();
+        update.close();
+      }
+    }
+
+    /**
+     * Listings filter by folder and sort by name, size or date, with _id
+     * breaking ties so pages can continue from the last row. Every index
+     * ends in the rowid, so each order is read straight off its index.
+     * Lookups by _id already use the rowid and need no index.
+     */
+    private static void createIndexes(SQLiteDatabase db) {
+      db.execSQL("CREATE INDEX IF NOT EXISTS " + FILES_TABLE_NAME
+          + "_folder_name ON " + FILES_TABLE_NAME + " ("
+          + Files.Columns.FOLDER_ID + "," + Files.Columns.DISPLAY_NAME + ")");
+      db.execSQL("CREATE INDEX IF NOT EXISTS " + FILES_TABLE_NAME
+          + "_folder_size ON " + FILES_TABLE_NAME + " ("
+          + Files.Columns.FOLDER_ID + "," + Files.Columns.SIZE + ")");
+      db.execSQL("CREATE INDEX IF NOT EXISTS " + FILES_TABLE_NAME
+          + "_folder_date ON " + FILES_TABLE_NAME + " ("
+          + Files.Columns.FOLDER_ID + "," + Files.Columns.DATE_MODIFIED + ")");
+    }
+
     private static void createTables(
         SQLiteDatabase db, String foldersTable, String filesTable) {
       db.execSQL("CREATE TABLE " + foldersTable + " ("
@@ -170,6 +407,9 @@ public class FileSharingProvider extends ContentProvider {
           + Files.Columns.FOLDER_ID + " INTEGER,"
           + Files.Columns.DISPLAY_NAME + " TEXT,"
           + Files.Columns._DATA + " TEXT,"
+          + Files.Columns.SIZE + " INTEGER NOT NULL DEFAULT 0,"
+          + Files.Columns.DATE_MODIFIED + " INTEGER NOT NULL DEFAULT 0,"
+          + Files.Columns.MIME_TYPE + " TEXT,"
           + "UNIQUE (" + Files.Columns.FOLDER_ID + ","
           + Files.Columns._DATA + ")"
           + ");");
@@ -195,6 +435,8 @@ public class FileSharingProvider extends ContentProvider {
         return Files.CONTENT_TYPE;
       case FILE:
         return Files.CONTENT_ITEM_TYPE;
+      case CHANGES:
+        return Changes.CONTENT_TYPE;
       default:
         throw new IllegalArgumentException("Unknown URI " + uri);
     }
@@ -212,6 +454,7 @@ public class FileSharingProvider extends ContentProvider {
       SQLiteDatabase db = mOpenHelper.getWritableDatabase();
       long rowId = db.insert(FOLDERS_TABLE_NAME, Folders.Columns.DISPLAY_NAME, values);
       if (rowId > 0) {
+        bumpVersion();
         Uri folderUri = ContentUris.withAppendedId(Folders.CONTENT_URI, rowId);
         getContext().getContentResolver().notifyChange(folderUri, null);
         return folderUri;
@@ -231,6 +474,7 @@ public class FileSharingProvider extends ContentProvider {
       SQLiteDatabase db = mOpenHelper.getWritableDatabase();
       long rowId = db.insert(FILES_TABLE_NAME, Files.Columns.DISPLAY_NAME, values);
       if (rowId >= 0) {
+        bumpVersion();
         Uri fileUri = ContentUris.withAppendedId(Files.CONTENT_URI, rowId);
         getContext().getContentResolver().notifyChange(fileUri, null);
         Log.i(TAG, "Inserted row " + fileUri.toString());
@@ -240,6 +484,66 @@ public class FileSharingProvider extends ContentProvider {
     throw new SQLException("Failed to insert row into " + uri);
   }
 
+  /**
+   * Inserts shared files in a single transaction through one compiled
+   * statement, with one change notification. Rows that are already shared
+   * are skipped.
+   */
+  @Override
+  public int bulkInsert(Uri uri, ContentValues[] values) {
+    if (!getType(uri).equals(Files.CONTENT_TYPE)) {
+      return super.bulkInsert(uri, values);
+    }
+    SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+    int rowsInserted = 0;
+    db.beginTransaction();
+    SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO "
+        + FILES_TABLE_NAME + " (" + Files.Columns.FOLDER_ID + ","
+        + Files.Columns.DISPLAY_NAME + "," + Files.Columns._DATA + ","
+        + Files.Columns.SIZE + "," + Files.Columns.DATE_MODIFIED + ","
+        + Files.Columns.MIME_TYPE + ") VALUES (?, ?, ?, ?, ?, ?)");
+    SQLiteStatement changes = db.compileStatement("SELECT changes()");
+    try {
+      for (ContentValues value : values) {
+        Long folderId = value.getAsLong(Files.Columns.FOLDER_ID);
+        String name = value.getAsString(Files.Columns.DISPLAY_NAME);
+        String data = value.getAsString(Files.Columns._DATA);
+        if (folderId == null || name == null || data == null) {
+          throw new IllegalArgumentException(
+              "Folder id, file name and data URI required");
+        }
+        insert.bindLong(1, folderId);
+        insert.bindString(2, name);
+        insert.bindString(3, data);
+        Long size = value.getAsLong(Files.Columns.SIZE);
+        insert.bindLong(4, size != null ? size : 0);
+        Long dateModified = value.getAsLong(Files.Columns.DATE_MODIFIED);
+        insert.bindLong(5, dateModified != null ? dateModified : 0);
+        String mimeType = value.getAsString(Files.Columns.MIME_TYPE);
+        if (mimeType != null) {
+          insert.bindString(6, mimeType);
+        } else {
+          insert.bindNull(6);
+        }
+        /* An ignored row reports the previous insert's rowid, so count
+         * rows through changes() instead. */
+        insert.execute();
+        rowsInserted += (int) changes.simpleQueryForLong();
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      insert.close();
+      changes.close();
+      db.endTransaction();
+    }
+    if (rowsInserted > 0) {
+      bumpVersion();
+      getContext().getContentResolver().notifyChange(Files.CONTENT_URI, null);
+    }
+    Log.i(TAG, "Inserted " + rowsInserted + " rows into " + uri);
+    return rowsInserted;
+  }
+
   @Override
   public int delete(Uri uri, String selection, String[] selectionArgs) {
     SQLiteDatabase db = mOpenHelper.getWritableDatabase();
@@ -249,6 +553,10 @@ public class FileSharingProvider extends ContentProvider {
     } else if (getType(uri).equals(Folders.CONTENT_TYPE)) {
       rowsDeleted += db.delete(FOLDERS_TABLE_NAME, selection, null);
     } 
+    if (rowsDeleted > 0) {
+      bumpVersion();
+      getContext().getContentResolver().notifyChange(uri, null);
+    }
     return rowsDeleted;
   }
 
@@ -276,13 +584,24 @@ public class FileSharingProvider extends ContentProvider {
         qb.setProjectionMap(sFilesProjectionMap);
         qb.appendWhere(Files.Columns._ID + "=" + uri.getPathSegments().get(1));
         break;
+      case CHANGES:
+        /* No projection map, so aggregates like max(_id) can be asked for. */
+        qb.setTables(CHANGES_TABLE_NAME);
+        break;
       default:
         throw new IllegalArgumentException("Unknown URI " + uri);
     }
 
+    /* ContentResolver.query has no limit, it comes as a query parameter. */
+    String limit = uri.getQueryParameter(Files.QUERY_LIMIT);
+    if (limit != null && !limit.matches("\\d+")) {
+      throw new IllegalArgumentException("Bad limit " + limit);
+    }
+
     // Get the database and run the query
     SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-    Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+    Cursor c = qb.query(db, projection, selection, selectionArgs, null, null,
+        sortOrder, limit);
 
     // Tell the cursor what uri to watch, so it knows when its source data changes
     c.setNotificationUri(getContext().getContentResolver(), uri);
@@ -292,8 +611,86 @@ public class FileSharingProvider extends ContentProvider {
   @Override
   public int update(Uri uri, ContentValues values, String selection,
       String[] selectionArgs) {
-    // TODO Auto-generated method stub
-    return 0;
+    SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+    int rowsUpdated;
+    switch (sUriMatcher.match(uri)) {
+      case FOLDERS:
+        rowsUpdated = db.update(FOLDERS_TABLE_NAME, values, selection,
+            selectionArgs);
+        break;
+      case FOLDER:
+        rowsUpdated = db.update(FOLDERS_TABLE_NAME, values,
+            getRowSelection(Folders.Columns._ID, uri, selection),
+            selectionArgs);
+        break;
+      case FILES:
+        rowsUpdated = db.update(FILES_TABLE_NAME, values, selection,
+            selectionArgs);
+        break;
+      case FILE:
+        rowsUpdated = db.update(FILES_TABLE_NAME, values,
+            getRowSelection(Files.Columns._ID, uri, selection), selectionArgs);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown URI " + uri);
+    }
+    if (rowsUpdated > 0 && uri.getQueryParameter(Files.QUERY_CACHE_ONLY)
+        == null) {
+      bumpVersion();
+      getContext().getContentResolver().notifyChange(uri, null);
+    }
+    return rowsUpdated;
+  }
+
+  /* Restricts a selection to the row named by an item uri. */
+  private static String getRowSelection(String idColumn, Uri uri,
+      String selection) {
+    String where = idColumn + "="
+        + Long.parseLong(uri.getPathSegments().get(1));
+    if (selection != null && selection.length() > 0) {
+      where += " AND (" + selection + ")";
+    }
+    return where;
+  }
+
+  /**
+   * Returns a tag that changes whenever shared folders or files change.
+   * Used to validate pages generated from the provider.
+   */
+  public static String getVersionTag() {
+    return Long.toHexString(sEpoch) + "-" + Long.toHexString(sVersion.get());
+  }
+
+  /* Returns the version, to be handed to {@link #awaitChange}. */
+  public static long getVersion() {
+    return sVersion.get();
+  }
+
+  /**
+   * Waits until folders or files change after the given version was read.
+   *
+   * @return Whether anything changed before the timeout.
+   */
+  public static boolean awaitChange(long version, long timeoutMillis)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    synchronized (sVersionMonitor) {
+      while (sVersion.get() == version) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+        sVersionMonitor.wait(remaining);
+      }
+    }
+    return true;
+  }
+
+  private static void bumpVersion() {
+    synchronized (sVersionMonitor) {
+      sVersion.incrementAndGet();
+      sVersionMonitor.notifyAll();
+    }
   }
 
   /**
@@ -306,11 +703,50 @@ public class FileSharingProvider extends ContentProvider {
    */
   public static final Uri addFileToFolder(ContentResolver cr, Uri file, Uri folder) {
     Log.i(TAG, "Adding file to folder " + file + " " + folder);
-    /* Get file path */
-    Cursor c = cr.query(file, null, null, null, null);
-    int nameIndex = c.getColumnIndexOrThrow(OpenableColumns.DISPLAY_NAME);
-    c.moveToFirst();
-    String name = c.getString(nameIndex);
+    return cr.insert(Files.CONTENT_URI, getFileValues(cr, file, folder));
+  }
+
+  /**
+   * Adds several files to a shared folder in one transaction.
+   *
+   * @return The number of files added.
+   */
+  public static final int addFilesToFolder(ContentResolver cr, List<Uri> files,
+      Uri folder) {
+    if (files.isEmpty()) {
+      return 0;
+    }
+    ContentValues[] values = new ContentValues[files.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = getFileValues(cr, files.get(i), folder);
+    }
+    return cr.bulkInsert(Files.CONTENT_URI, values);
+  }
+
+  private static ContentValues getFileValues(ContentResolver cr, Uri file,
+      Uri folder) {
+    /* Get file name and size, files on disk don't need a query for it. */
+    String name;
+    long size = 0;
+    long dateModified = 0;
+    String mimeType = null;
+    File path = FileProvider.getFile(file);
+    if (path != null) {
+      name = path.getName();
+      size = path.length();
+      dateModified = path.lastModified();
+    } else {
+      mimeType = cr.getType(file);
+      Cursor c = cr.query(file, null, null, null, null);
+      int nameIndex = c.getColumnIndexOrThrow(OpenableColumns.DISPLAY_NAME);
+      int sizeIndex = c.getColumnIndex(OpenableColumns.SIZE);
+      c.moveToFirst();
+      name = c.getString(nameIndex);
+      if (sizeIndex >= 0 && !c.isNull(sizeIndex)) {
+        size = c.getLong(sizeIndex);
+      }
+      c.close();
+    }
 
     /* Get folder id */
     int folderId = Integer.parseInt(folder.getPathSegments().get(1));
@@ -319,7 +755,86 @@ public class FileSharingProvider extends ContentProvider {
     values.put(Files.Columns._DATA, file.toString());
     values.put(Files.Columns.DISPLAY_NAME, name);
     values.put(Files.Columns.FOLDER_ID, folderId);
-    return cr.insert(Files.CONTENT_URI, values);
+    values.put(Files.Columns.SIZE, size);
+    values.put(Files.Columns.DATE_MODIFIED, dateModified);
+    values.put(Files.Columns.MIME_TYPE,
+        mimeType != null ? mimeType : getMimeType(name));
+    return values;
+  }
+
+  /**
+   * Refreshes the size and date of shared files on disk that changed since
+   * they were shared, so downloads can trust the stored values. Goes through
+   * the table a page of rows at a time.
+   *
+   * @return The number of files updated.
+   */
+  public static int revalidateFiles(ContentResolver cr) {
+    Uri pageUri = Files.CONTENT_URI.buildUpon()
+        .appendQueryParameter(Files.QUERY_LIMIT,
+            Integer.toString(REVALIDATE_PAGE_SIZE))
+        .build();
+    long lastId = -1;
+    int updated = 0;
+    int rows;
+    do {
+      rows = 0;
+      Cursor c = cr.query(pageUri, new String[] {Files.Columns._ID,
+          Files.Columns._DATA, Files.Columns.SIZE, Files.Columns.DATE_MODIFIED},
+          Files.Columns._ID + ">" + lastId, null, Files.Columns._ID);
+      try {
+        while (c.moveToNext()) {
+          rows++;
+          lastId = c.getLong(0);
+          File file = FileProvider.getFile(Uri.parse(c.getString(1)));
+          if (file == null || !file.isFile()) {
+            /* Not ours to stat, or the card is out. */
+            continue;
+          }
+          long size = file.length();
+          long dateModified = file.lastModified();
+          if (size != c.getLong(2) || dateModified != c.getLong(3)) {
+            updated += updateFileStats(cr, lastId, size, dateModified);
+          }
+        }
+      } finally {
+        c.close();
+      }
+    } while (rows == REVALIDATE_PAGE_SIZE);
+    return updated;
+  }
+
+  /* Stores the size and date a shared file was found to have. */
+  public static int updateFileStats(ContentResolver cr, long fileId, long size,
+      long dateModified) {
+    ContentValues values = new ContentValues();
+    values.put(Files.Columns.SIZE, size);
+    values.put(Files.Columns.DATE_MODIFIED, dateModified);
+    return cr.update(getCacheOnlyUri(fileId), values, null, null);
+  }
+
+  private static Uri getCacheOnlyUri(long fileId) {
+    return ContentUris.withAppendedId(Files.CONTENT_URI, fileId).buildUpon()
+        .appendQueryParameter(Files.QUERY_CACHE_ONLY, "1")
+        .build();
+  }
+
+  /**
+   * Guesses the type of a file from the extension of its name. Downloads
+   * sniff the content of files this can't place and store what they find
+   * with {@link #updateMimeType}.
+   */
+  public static String getMimeType(String name) {
+    String type = MimeTypes.guess(name);
+    return type != null ? type : MimeTypes.DEFAULT_TYPE;
+  }
+
+  /* Stores the type a shared file was found to have. */
+  public static int updateMimeType(ContentResolver cr, long fileId,
+      String mimeType) {
+    ContentValues values = new ContentValues();
+    values.put(Files.Columns.MIME_TYPE, mimeType);
+    return cr.update(getCacheOnlyUri(fileId), values, null, null);
   }
 
   /**
@@ -342,6 +857,7 @@ public class FileSharingProvider extends ContentProvider {
     sUriMatcher.addURI(AUTHORITY, "folders/#", FOLDER);
     sUriMatcher.addURI(AUTHORITY, "files/#", FILE);
     sUriMatcher.addURI(AUTHORITY, "files", FILES);
+    sUriMatcher.addURI(AUTHORITY, "changes", CHANGES);
 
     sFoldersProjectionMap = new HashMap<String, String>();
     sFoldersProjectionMap.put(Folders.Columns._ID, Folders.Columns._ID);
@@ -353,6 +869,10 @@ public class FileSharingProvider extends ContentProvider {
     sFilesProjectionMap.put(Files.Columns.FOLDER_ID, Files.Columns.FOLDER_ID);
     sFilesProjectionMap.put(Files.Columns.DISPLAY_NAME, Files.Columns.DISPLAY_NAME);
     sFilesProjectionMap.put(Files.Columns._DATA, Files.Columns._DATA);
+    sFilesProjectionMap.put(Files.Columns.SIZE, Files.Columns.SIZE);
+    sFilesProjectionMap.put(Files.Columns.DATE_MODIFIED,
+        Files.Columns.DATE_MODIFIED);
+    sFilesProjectionMap.put(Files.Columns.MIME_TYPE, Files.Columns.MIME_TYPE);
   }
 
 }
@@ -36,7 +36,21 @@ public class FileSharingService extends Service {
   public static String PREFS_REQUIRE_LOGIN = "REQUIRE_LOGIN";
   public static String PREFS_PASSWORD = "PASSWORD";
   public static final String PREFS_SERVICE_ON_STARTUP = "SERVICE_ON_STARTUP";
-
+  static final String PREFS_MAX_CONNECTIONS = "MAX_CONNECTIONS";
+  static final String PREFS_CONNECTION_QUEUE = "CONNECTION_QUEUE";
+  /* Either WebServer.MODE_SELECTOR or WebServer.MODE_BLOCKING. */
+  static final String PREFS_SERVER_MODE = "SERVER_MODE";
+  /* Either WebServer.SESSIONS_SIGNED or WebServer.SESSIONS_STORED. */
+  static final String PREFS_SESSION_MODE = "SESSION_MODE";
+  /* Hex encoded key that login sessions are signed with. */
+  static final String PREFS_SESSION_KEY = "SESSION_KEY";
+  /* KB of small files the web server keeps mapped, 0 to map none. */
+  static final String PREFS_MAPPED_FILES_KB = "MAPPED_FILES_KB";
+
+  /* Worker threads and queued connections allowed by default. */
+  static final int DEFAULT_MAX_CONNECTIONS = 8;
+  static final int DEFAULT_CONNECTION_QUEUE = 32;
+  static final int DEFAULT_MAPPED_FILES_KB = 4 * 1024;
 
   private static final int DEFAULT_PORT = 9999;
 
@@ -52,6 +66,13 @@ public class FileSharingService extends Service {
     public int getPort() {
       return mPort;
     }
+
+    public String getStatistics() {
+      if (mWebServer == null) {
+        return "";
+      }
+      return mWebServer.getStatistics();
+    }
   };
 
   @Override
@@ -89,6 +110,20 @@ public class FileSharingService extends Service {
     };
     mWebServerThread.start();
     Log.i(TAG, "Started webserver");
+
+    /* Catch up with shared files that changed while we were not running. */
+    Thread revalidationThread = new Thread("FileSharer revalidation") {
+      @Override
+      public void run() {
+        int updated = FileSharingProvider.revalidateFiles(getContentResolver());
+        Log.i(TAG, "Revalidated shared files, " + updated + " changed");
+      }
+    };
+    revalidationThread.setPriority(Thread.MIN_PRIORITY);
+    revalidationThread.start();
+
+    /* Finish sharing directories even if no activity is opened. */
+    ShareJob.resumePending(this);
   }
 
   @Override
@@ -0,0 +1,204 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * HttpEntity for an HTML or JSON listing that is rendered while it is being
+ * sent, typically straight from a cursor. Its length is unknown up front,
+ * so it goes out chunked, or delimited by closing the connection for
+ * HTTP/1.0 clients.
+ *
+ * Text is encoded into a buffer owned by the sending thread and written out
+ * whenever the buffer fills up, so a listing of any size costs the same
+ * memory and starts arriving as soon as the first rows are read.
+ */
+public abstract class ListingEntity extends AbstractHttpEntity {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  /* Reused by every listing a worker thread sends. */
+  private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[BUFFER_SIZE];
+    }
+  };
+
+  public ListingEntity() {
+    this("text/html; charset=UTF-8");
+  }
+
+  public ListingEntity(String contentType) {
+    setContentType(contentType);
+    setChunked(true);
+  }
+
+  /* Writes the page. Called once for every time the entity is sent. */
+  protected abstract void render(ListingWriter out) throws IOException;
+
+  public long getContentLength() {
+    return -1;
+  }
+
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  public boolean isStreaming() {
+    return false;
+  }
+
+  /* Renders the whole page into memory, only for callers that need it. */
+  public InputStream getContent() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeTo(out);
+    return new ByteArrayInputStream(out.toByteArray());
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    ListingWriter writer = new ListingWriter(out, sBuffer.get());
+    render(writer);
+    writer.flush();
+    out.flush();
+  }
+
+  /**
+   * Encodes text as UTF-8 into a fixed buffer. Not thread safe.
+   */
+  public static class ListingWriter {
+    private final OutputStream mOut;
+    private final byte[] mBuffer;
+    private int mCount;
+
+    private ListingWriter(OutputStream out, byte[] buffer) {
+      mOut = out;
+      mBuffer = buffer;
+    }
+
+    /* Writes markup as is. */
+    public ListingWriter write(String s) throws IOException {
+      for (int i = 0; i < s.length(); ) {
+        i += writeChar(s, i);
+      }
+      return this;
+    }
+
+    public ListingWriter write(long n) throws IOException {
+      return write(Long.toString(n));
+    }
+
+    /* Writes a quoted JSON string, or null. */
+    public ListingWriter writeJson(String s) throws IOException {
+      if (s == null) {
+        return write("null");
+      }
+      write("\"");
+      for (int i = 0; i < s.length(); ) {
+        char c = s.charAt(i);
+        if (c == '"' || c == '\\') {
+          write("\\").write(String.valueOf(c));
+        } else if (c < 0x20) {
+          String hex = Integer.toHexString(c);
+          write("\\u00").write(hex.length() < 2 ? "0" + hex : hex);
+        } else {
+          i += writeChar(s, i);
+          continue;
+        }
+        i++;
+      }
+      return write("\"");
+    }
+
+    /* Writes text, escaped for use in an element or a quoted attribute. */
+    public ListingWriter writeEscaped(String s) throws IOException {
+      for (int i = 0; i < s.length(); ) {
+        char c = s.charAt(i);
+        switch (c) {
+          case '&':
+            write("&amp;");
+            break;
+          case '<':
+            write("&lt;");
+            break;
+          case '>':
+            write("&gt;");
+            break;
+          case '"':
+            write("&quot;");
+            break;
+          case '\'':
+            write("&#39;");
+            break;
+          default:
+            i += writeChar(s, i);
+            continue;
+        }
+        i++;
+      }
+      return this;
+    }
+
+    /**
+     * Encodes the character at index, or the surrogate pair starting there.
+     *
+     * @return The number of chars consumed.
+     */
+    private int writeChar(String s, int index) throws IOException {
+      if (mCount + 4 > mBuffer.length) {
+        flush();
+      }
+      char c = s.charAt(index);
+      if (c < 0x80) {
+        mBuffer[mCount++] = (byte) c;
+      } else if (c < 0x800) {
+        mBuffer[mCount++] = (byte) (0xc0 | (c >> 6));
+        mBuffer[mCount++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && index + 1 < s.length()
+          && Character.isLowSurrogate(s.charAt(index + 1))) {
+        int codePoint = Character.toCodePoint(c, s.charAt(index + 1));
+        mBuffer[mCount++] = (byte) (0xf0 | (codePoint >> 18));
+        mBuffer[mCount++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        mBuffer[mCount++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        mBuffer[mCount++] = (byte) (0x80 | (codePoint & 0x3f));
+        return 2;
+      } else if (c >= Character.MIN_SURROGATE
+          && c <= Character.MAX_SURROGATE) {
+        /* Unpaired surrogate. */
+        mBuffer[mCount++] = (byte) '?';
+      } else {
+        mBuffer[mCount++] = (byte) (0xe0 | (c >> 12));
+        mBuffer[mCount++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        mBuffer[mCount++] = (byte) (0x80 | (c & 0x3f));
+      }
+      return 1;
+    }
+
+    /* Sends what has been buffered, as one chunk when chunked. */
+    public void flush() throws IOException {
+      if (mCount > 0) {
+        mOut.write(mBuffer, 0, mCount);
+        mCount = 0;
+      }
+    }
+  }
+}
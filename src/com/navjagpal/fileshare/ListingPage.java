@@ -0,0 +1,172 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * One page of the files in a folder, from the query string of a listing:
+ *
+ *   sort=name|size|date   what to sort by, name by default
+ *   order=desc            reverse the order
+ *   limit=N               files per page
+ *   after=KEY&after_id=ID where the previous page ended
+ *
+ * Pages continue from the sort key and id of the last row instead of
+ * skipping an offset, so each one is a range read on the folder's index for
+ * that sort and costs the same however deep into the folder it is.
+ */
+class ListingPage {
+
+  public static final int DEFAULT_LIMIT = 200;
+  public static final int MAX_LIMIT = 1000;
+
+  private static final String SORT_NAME = "name";
+  private static final String SORT_SIZE = "size";
+  private static final String SORT_DATE = "date";
+
+  private final String mSort;
+  private final String mColumn;
+  private final boolean mDescending;
+  private final int mLimit;
+  private final String mAfter;
+  private final long mAfterId;
+
+  private ListingPage(String sort, boolean descending, int limit,
+      String after, long afterId) {
+    mSort = sort;
+    if (SORT_SIZE.equals(sort)) {
+      mColumn = FileSharingProvider.Files.Columns.SIZE;
+    } else if (SORT_DATE.equals(sort)) {
+      mColumn = FileSharingProvider.Files.Columns.DATE_MODIFIED;
+    } else {
+      mColumn = FileSharingProvider.Files.Columns.DISPLAY_NAME;
+    }
+    mDescending = descending;
+    mLimit = limit;
+    mAfter = after;
+    mAfterId = afterId;
+  }
+
+  /* Reads the page from a request uri. Bad parameters get defaults. */
+  public static ListingPage parse(String requestUri) {
+    Uri uri = Uri.parse(requestUri);
+    String sort = uri.getQueryParameter("sort");
+    if (!SORT_SIZE.equals(sort) && !SORT_DATE.equals(sort)) {
+      sort = SORT_NAME;
+    }
+    boolean descending = "desc".equals(uri.getQueryParameter("order"));
+    int limit = DEFAULT_LIMIT;
+    String after = uri.getQueryParameter("after");
+    long afterId = -1;
+    try {
+      String value = uri.getQueryParameter("limit");
+      if (value != null) {
+        limit = Math.max(1, Math.min(MAX_LIMIT, Integer.parseInt(value)));
+      }
+      value = uri.getQueryParameter("after_id");
+      if (value != null) {
+        afterId = Long.parseLong(value);
+      }
+    } catch (NumberFormatException e) {
+      after = null;
+    }
+    if (after == null || afterId < 0
+        || (!SORT_NAME.equals(sort) && !after.matches("-?\\d+"))) {
+      after = null;
+      afterId = -1;
+    }
+    return new ListingPage(sort, descending, limit, after, afterId);
+  }
+
+  /* The first page, in the default order. */
+  public static ListingPage first() {
+    return new ListingPage(SORT_NAME, false, DEFAULT_LIMIT, null, -1);
+  }
+
+  /* Column the page is sorted by. */
+  public String getColumn() {
+    return mColumn;
+  }
+
+  /**
+   * Returns the selection for the files of a folder on this page. Rows with
+   * the same key as the last row are told apart by id. The key range comes
+   * first so it can bound the index scan.
+   */
+  public String getSelection(long folderId) {
+    String selection = FileSharingProvider.Files.Columns.FOLDER_ID + "="
+        + folderId;
+    if (mAfter != null) {
+      String op = mDescending ? "<" : ">";
+      selection += " AND " + mColumn + op + "=? AND (" + mColumn + op + "? OR "
+          + FileSharingProvider.Files.Columns._ID + op + "?)";
+    }
+    return selection;
+  }
+
+  public String[] getSelectionArgs() {
+    if (mAfter == null) {
+      return null;
+    }
+    return new String[] {mAfter, mAfter, Long.toString(mAfterId)};
+  }
+
+  public String getSortOrder() {
+    String direction = mDescending ? " DESC" : " ASC";
+    return mColumn + direction + "," + FileSharingProvider.Files.Columns._ID
+        + direction;
+  }
+
+  /* One more row than is shown, to tell whether there is a next page. */
+  public Uri getQueryUri() {
+    return FileSharingProvider.Files.CONTENT_URI.buildUpon()
+        .appendQueryParameter(FileSharingProvider.Files.QUERY_LIMIT,
+            Integer.toString(mLimit + 1))
+        .build();
+  }
+
+  public int getLimit() {
+    return mLimit;
+  }
+
+  /* Link to this folder sorted another way, starting from the top. */
+  public String getSortLink(long folderId, String sort) {
+    boolean descending = sort.equals(mSort) && !mDescending;
+    return "/folder/" + folderId + "?sort=" + sort
+        + (descending ? "&order=desc" : "") + "&limit=" + mLimit;
+  }
+
+  /**
+   * Link to the page after this one.
+   *
+   * @param path Path of the listing, like /folder/{id}.
+   * @param c Cursor positioned on the last row shown.
+   * @param idIndex Index of the _id column.
+   * @param keyIndex Index of the sort column.
+   */
+  public String getNextLink(String path, Cursor c, int idIndex,
+      int keyIndex) {
+    return path + "?sort=" + mSort
+        + (mDescending ? "&order=desc" : "") + "&limit=" + mLimit
+        + "&after=" + Uri.encode(c.getString(keyIndex))
+        + "&after_id=" + c.getLong(idIndex);
+  }
+
+  public static String[] getSorts() {
+    return new String[] {SORT_NAME, SORT_SIZE, SORT_DATE};
+  }
+}
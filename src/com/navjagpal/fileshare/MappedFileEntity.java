@@ -0,0 +1,139 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * HttpEntity for a region of a file mapped into memory. When the client
+ * socket has a channel the mapped pages are written to it directly, without
+ * copying them into the heap. The buffer itself is never moved, so any
+ * number of entities can send from it at once.
+ */
+public class MappedFileEntity extends AbstractHttpEntity
+    implements TransferableEntity {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final ByteBuffer mBuffer;
+  private final long mPosition;
+  private final long mLength;
+
+  /**
+   * @param buffer The whole file.
+   * @param position Offset of the first byte to send.
+   * @param length Number of bytes to send.
+   */
+  public MappedFileEntity(ByteBuffer buffer, long position, long length) {
+    mBuffer = buffer;
+    mPosition = position;
+    mLength = length;
+  }
+
+  public long getContentLength() {
+    return mLength;
+  }
+
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  public boolean isStreaming() {
+    return false;
+  }
+
+  public InputStream getContent() throws IOException {
+    final ByteBuffer region = getRegion(mBuffer, mPosition, mLength);
+    return new InputStream() {
+      @Override
+      public int read() throws IOException {
+        return region.hasRemaining() ? (region.get() & 0xff) : -1;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (!region.hasRemaining()) {
+          return -1;
+        }
+        int count = Math.min(len, region.remaining());
+        region.get(b, off, count);
+        return count;
+      }
+    };
+  }
+
+  public void transferTo(WritableByteChannel target) throws IOException {
+    transferRegion(mBuffer, mPosition, mLength, target);
+  }
+
+  public void prepareTransfer() {
+  }
+
+  public long transferTo(long offset, WritableByteChannel target)
+      throws IOException {
+    return target.write(
+        getRegion(mBuffer, mPosition + offset, mLength - offset));
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    copyRegion(mBuffer, mPosition, mLength, out, new byte[BUFFER_SIZE]);
+    out.flush();
+  }
+
+  /* Writes part of a mapped file to a channel straight from its pages. */
+  static void transferRegion(ByteBuffer buffer, long position, long length,
+      WritableByteChannel target) throws IOException {
+    ByteBuffer region = getRegion(buffer, position, length);
+    while (region.hasRemaining()) {
+      target.write(region);
+    }
+  }
+
+  /* Copies part of a mapped file to a stream, a buffer at a time. */
+  static void copyRegion(ByteBuffer buffer, long position, long length,
+      OutputStream out, byte[] buf) throws IOException {
+    ByteBuffer region = getRegion(buffer, position, length);
+    while (region.hasRemaining()) {
+      int count = Math.min(buf.length, region.remaining());
+      region.get(buf, 0, count);
+      out.write(buf, 0, count);
+    }
+  }
+
+  /* A view of the region with its own position, leaving the buffer alone. */
+  static ByteBuffer getRegion(ByteBuffer buffer, long position,
+      long length) {
+    ByteBuffer region = buffer.duplicate();
+    region.limit((int) (position + length));
+    region.position((int) position);
+    return region;
+  }
+
+  /* Releases the file once the response has been sent. */
+  @Override
+  public void consumeContent() throws IOException {
+    release();
+  }
+
+  /* Nothing to close, the mapping goes away with the buffer. */
+  protected void release() throws IOException {
+  }
+}
@@ -0,0 +1,266 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import android.webkit.MimeTypeMap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * Works out the content type of a file, first from the extension of its
+ * name and then, when that doesn't say, from the magic bytes at its start.
+ * Browsers only play videos and show documents in the page when they get
+ * the right type.
+ */
+public class MimeTypes {
+
+  public static final String DEFAULT_TYPE = "application/octet-stream";
+
+  /* Bytes read from the start of a file to sniff its type. */
+  public static final int SNIFF_LENGTH = 512;
+
+  /* Types MimeTypeMap is missing or gets wrong on older releases. */
+  private static final HashMap<String, String> sExtensions =
+      new HashMap<String, String>();
+
+  static {
+    sExtensions.put("jpg", "image/jpeg");
+    sExtensions.put("jpeg", "image/jpeg");
+    sExtensions.put("png", "image/png");
+    sExtensions.put("gif", "image/gif");
+    sExtensions.put("webp", "image/webp");
+    sExtensions.put("bmp", "image/bmp");
+    sExtensions.put("heic", "image/heic");
+    sExtensions.put("heif", "image/heif");
+    sExtensions.put("avif", "image/avif");
+    sExtensions.put("svg", "image/svg+xml");
+    sExtensions.put("mp3", "audio/mpeg");
+    sExtensions.put("m4a", "audio/mp4");
+    sExtensions.put("aac", "audio/aac");
+    sExtensions.put("ogg", "audio/ogg");
+    sExtensions.put("oga", "audio/ogg");
+    sExtensions.put("opus", "audio/ogg");
+    sExtensions.put("flac", "audio/flac");
+    sExtensions.put("wav", "audio/x-wav");
+    sExtensions.put("m3u", "audio/x-mpegurl");
+    sExtensions.put("mp4", "video/mp4");
+    sExtensions.put("m4v", "video/mp4");
+    sExtensions.put("3gp", "video/3gpp");
+    sExtensions.put("webm", "video/webm");
+    sExtensions.put("mkv", "video/x-matroska");
+    sExtensions.put("ogv", "video/ogg");
+    sExtensions.put("mov", "video/quicktime");
+    sExtensions.put("avi", "video/x-msvideo");
+    sExtensions.put("pdf", "application/pdf");
+    sExtensions.put("zip", "application/zip");
+    sExtensions.put("apk", "application/vnd.android.package-archive");
+    sExtensions.put("json", "application/json");
+    sExtensions.put("js", "application/javascript");
+    sExtensions.put("xml", "application/xml");
+    sExtensions.put("html", "text/html");
+    sExtensions.put("htm", "text/html");
+    sExtensions.put("css", "text/css");
+    sExtensions.put("csv", "text/csv");
+    sExtensions.put("txt", "text/plain");
+    sExtensions.put("log", "text/plain");
+  }
+
+  private MimeTypes() {
+  }
+
+  /* Returns the type for the extension of a name, or null if unknown. */
+  public static String guess(String name) {
+    int dot = name.lastIndexOf('.');
+    if (dot < 0) {
+      return null;
+    }
+    String extension = name.substring(dot + 1).toLowerCase();
+    String type = sExtensions.get(extension);
+    if (type == null) {
+      type = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+    }
+    return type;
+  }
+
+  /* Whether a type says nothing about the content, so sniffing may help. */
+  public static boolean isUnknown(String type) {
+    return type == null || type.equals(DEFAULT_TYPE)
+        || type.equals("application/unknown");
+  }
+
+  /**
+   * Whether a browser shown content of this type would run script in it.
+   * Uploaded files are served from the same origin as the session cookie,
+   * so such types must never be displayed inline.
+   */
+  public static boolean isActive(String contentType) {
+    String type = contentType.toLowerCase();
+    int semicolon = type.indexOf(';');
+    if (semicolon >= 0) {
+      type = type.substring(0, semicolon);
+    }
+    type = type.trim();
+    return type.equals("text/html") || type.endsWith("+xml")
+        || type.endsWith("/xml") || type.endsWith("javascript")
+        || type.endsWith("ecmascript")
+        || type.equals("application/x-shockwave-flash");
+  }
+
+  /* Sniffs the start of a file with a positional read. */
+  public static String sniff(FileChannel channel) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(SNIFF_LENGTH);
+    int length = channel.read(buffer, 0);
+    return length > 0 ? sniff(buffer.array(), length) : null;
+  }
+
+  /**
+   * Sniffs the start of a stream, which is reset to where it was.
+   *
+   * @param input A stream that supports mark.
+   */
+  public static String sniff(InputStream input) throws IOException {
+    byte[] b = new byte[SNIFF_LENGTH];
+    input.mark(SNIFF_LENGTH);
+    int length = 0;
+    try {
+      int count;
+      while (length < b.length
+          && (count = input.read(b, length, b.length - length)) > 0) {
+        length += count;
+      }
+    } finally {
+      input.reset();
+    }
+    return length > 0 ? sniff(b, length) : null;
+  }
+
+  /**
+   * Recognizes a file from its first bytes.
+   *
+   * @return The type, or null if nothing matched.
+   */
+  public static String sniff(byte[] b, int length) {
+    if (startsWith(b, length, 0, "%PDF-")) {
+      return "application/pdf";
+    } else if (startsWith(b, length, 0, "\u0089PNG\r\n\u001a\n")) {
+      return "image/png";
+    } else if (startsWith(b, length, 0, "\u00ff\u00d8\u00ff")) {
+      return "image/jpeg";
+    } else if (startsWith(b, length, 0, "GIF87a")
+        || startsWith(b, length, 0, "GIF89a")) {
+      return "image/gif";
+    } else if (startsWith(b, length, 0, "RIFF")) {
+      if (startsWith(b, length, 8, "WEBP")) {
+        return "image/webp";
+      } else if (startsWith(b, length, 8, "WAVE")) {
+        return "audio/x-wav";
+      } else if (startsWith(b, length, 8, "AVI ")) {
+        return "video/x-msvideo";
+      }
+    } else if (startsWith(b, length, 4, "ftyp")) {
+      /* ISO media, the major brand tells what it holds. Photos use it too,
+       * so brands we don't know are left unknown. */
+      if (startsWith(b, length, 8, "M4A ")
+          || startsWith(b, length, 8, "M4B ")) {
+        return "audio/mp4";
+      } else if (startsWith(b, length, 8, "3gp")) {
+        return "video/3gpp";
+      } else if (startsWith(b, length, 8, "qt  ")) {
+        return "video/quicktime";
+      } else if (startsWith(b, length, 8, "heic")
+          || startsWith(b, length, 8, "heix")) {
+        return "image/heic";
+      } else if (startsWith(b, length, 8, "mif1")) {
+        return "image/heif";
+      } else if (startsWith(b, length, 8, "avif")) {
+        return "image/avif";
+      } else if (startsWith(b, length, 8, "isom")
+          || startsWith(b, length, 8, "iso2")
+          || startsWith(b, length, 8, "mp41")
+          || startsWith(b, length, 8, "mp42")
+          || startsWith(b, length, 8, "avc1")
+          || startsWith(b, length, 8, "M4V ")) {
+        return "video/mp4";
+      }
+      return null;
+    } else if (startsWith(b, length, 0, "\u001aE\u00df\u00a3")) {
+      return indexOf(b, length, "webm") >= 0 ? "video/webm"
+          : "video/x-matroska";
+    } else if (startsWith(b, length, 0, "OggS")) {
+      return "application/ogg";
+    } else if (startsWith(b, length, 0, "fLaC")) {
+      return "audio/flac";
+    } else if (startsWith(b, length, 0, "ID3")) {
+      return "audio/mpeg";
+    } else if (startsWith(b, length, 0, "PK\u0003\u0004")) {
+      return "application/zip";
+    } else if (startsWith(b, length, 0, "\u001f\u008b")) {
+      return "application/x-gzip";
+    } else if (startsWith(b, length, 0, "\u0000\u0000\u0001\u00ba")
+        || startsWith(b, length, 0, "\u0000\u0000\u0001\u00b3")) {
+      return "video/mpeg";
+    } else if (length >= 2 && (b[0] & 0xff) == 0xff
+        && (b[1] & 0xe0) == 0xe0) {
+      /* An MPEG audio frame; layer bits of zero mean ADTS AAC. */
+      return (b[1] & 0x06) == 0 ? "audio/aac" : "audio/mpeg";
+    } else if (isText(b, length)) {
+      /* Never text/html: markup is only recognized by its extension. */
+      return "text/plain";
+    }
+    return null;
+  }
+
+  /* Compares bytes with a string of chars below 256. */
+  private static boolean startsWith(byte[] b, int length, int offset,
+      String magic) {
+    if (length < offset + magic.length()) {
+      return false;
+    }
+    for (int i = 0; i < magic.length(); i++) {
+      if ((b[offset + i] & 0xff) != magic.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int indexOf(byte[] b, int length, String s) {
+    for (int i = 0; i + s.length() <= length; i++) {
+      if (startsWith(b, length, i, s)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /* No control characters other than whitespace, as in text files. */
+  private static boolean isText(byte[] b, int length) {
+    for (int i = 0; i < length; i++) {
+      int c = b[i] & 0xff;
+      if (c < 0x20 && c != '\t' && c != '\n' && c != '\r' && c != '\f'
+          && c != 0x1b) {
+        return false;
+      }
+      if (c == 0x7f) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,193 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * HttpEntity answering a request for several ranges of a file with a
+ * multipart/byteranges body. The length of the body is known up front.
+ */
+public class MultipartByteRangesEntity extends AbstractHttpEntity
+    implements TransferableEntity {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /* The file is either open or mapped. */
+  private final FileChannel mChannel;
+  private final ByteBuffer mMapped;
+  private final List<ByteRange> mRanges;
+  private final String mBoundary;
+  private final byte[][] mPartHeaders;
+  private final byte[] mTrailer;
+  private final long mContentLength;
+
+  /**
+   * @param channel The file, released once the entity has been sent.
+   * @param ranges The ranges to send, in ascending order.
+   * @param fileLength Length of the whole file.
+   * @param partContentType Content type of the file.
+   */
+  public MultipartByteRangesEntity(FileChannel channel, List<ByteRange> ranges,
+      long fileLength, String partContentType) throws IOException {
+    this(channel, null, ranges, fileLength, partContentType);
+  }
+
+  /**
+   * @param mapped The whole file, mapped into memory.
+   * @param ranges The ranges to send, in ascending order.
+   * @param fileLength Length of the whole file.
+   * @param partContentType Content type of the file.
+   */
+  public MultipartByteRangesEntity(ByteBuffer mapped, List<ByteRange> ranges,
+      long fileLength, String partContentType) throws IOException {
+    this(null, mapped, ranges, fileLength, partContentType);
+  }
+
+  private MultipartByteRangesEntity(FileChannel channel, ByteBuffer mapped,
+      List<ByteRange> ranges, long fileLength, String partContentType)
+      throws IOException {
+    mChannel = channel;
+    mMapped = mapped;
+    mRanges = ranges;
+    mBoundary = "FileShareRanges" + Long.toHexString(new Random().nextLong());
+    mPartHeaders = new byte[ranges.size()][];
+    long length = 0;
+    for (int i = 0; i < ranges.size(); i++) {
+      ByteRange range = ranges.get(i);
+      mPartHeaders[i] = ("\r\n--" + mBoundary + "\r\n"
+          + "Content-Type: " + partContentType + "\r\n"
+          + "Content-Range: " + range.toContentRange(fileLength) + "\r\n"
+          + "\r\n").getBytes("US-ASCII");
+      length += mPartHeaders[i].length + range.getLength();
+    }
+    mTrailer = ("\r\n--" + mBoundary + "--\r\n").getBytes("US-ASCII");
+    mContentLength = length + mTrailer.length;
+    setContentType("multipart/byteranges; boundary=" + mBoundary);
+  }
+
+  public long getContentLength() {
+    return mContentLength;
+  }
+
+  /* A channel is closed once the entity has been consumed. */
+  public boolean isRepeatable() {
+    return mChannel == null;
+  }
+
+  public boolean isStreaming() {
+    return false;
+  }
+
+  public InputStream getContent() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeTo(out);
+    return new ByteArrayInputStream(out.toByteArray());
+  }
+
+  public void transferTo(WritableByteChannel target) throws IOException {
+    for (int i = 0; i < mRanges.size(); i++) {
+      write(ByteBuffer.wrap(mPartHeaders[i]), target);
+      ByteRange range = mRanges.get(i);
+      if (mMapped != null) {
+        MappedFileEntity.transferRegion(mMapped, range.getStart(),
+            range.getLength(), target);
+      } else {
+        FileChannelEntity.transferRegion(mChannel, range.getStart(),
+            range.getLength(), target);
+      }
+    }
+    write(ByteBuffer.wrap(mTrailer), target);
+  }
+
+  public void prepareTransfer() {
+  }
+
+  /* Writes from the part header, range or trailer the offset falls in. */
+  public long transferTo(long offset, WritableByteChannel target)
+      throws IOException {
+    long partOffset = 0;
+    for (int i = 0; i < mRanges.size(); i++) {
+      if (offset < partOffset + mPartHeaders[i].length) {
+        int from = (int) (offset - partOffset);
+        return target.write(ByteBuffer.wrap(mPartHeaders[i], from,
+            mPartHeaders[i].length - from));
+      }
+      partOffset += mPartHeaders[i].length;
+      ByteRange range = mRanges.get(i);
+      if (offset < partOffset + range.getLength()) {
+        long from = offset - partOffset;
+        if (mMapped != null) {
+          return target.write(MappedFileEntity.getRegion(mMapped,
+              range.getStart() + from, range.getLength() - from));
+        }
+        return FileChannelEntity.transferSome(mChannel,
+            range.getStart() + from, range.getLength() - from, target);
+      }
+      partOffset += range.getLength();
+    }
+    int from = (int) (offset - partOffset);
+    return target.write(ByteBuffer.wrap(mTrailer, from,
+        mTrailer.length - from));
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    byte[] buf = new byte[BUFFER_SIZE];
+    for (int i = 0; i < mRanges.size(); i++) {
+      out.write(mPartHeaders[i]);
+      ByteRange range = mRanges.get(i);
+      if (mMapped != null) {
+        MappedFileEntity.copyRegion(mMapped, range.getStart(),
+            range.getLength(), out, buf);
+      } else {
+        FileChannelEntity.copyRegion(mChannel, range.getStart(),
+            range.getLength(), out, buf);
+      }
+    }
+    out.write(mTrailer);
+    out.flush();
+  }
+
+  /* Releases the file once the response has been sent. */
+  @Override
+  public void consumeContent() throws IOException {
+    release();
+  }
+
+  /* Closes the file. Overridden when the channel is shared. */
+  protected void release() throws IOException {
+    if (mChannel != null) {
+      mChannel.close();
+    }
+  }
+
+  private static void write(ByteBuffer buffer, WritableByteChannel target)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      target.write(buffer);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import org.apache.http.impl.DefaultHttpServerConnection;
+import org.apache.http.impl.io.AbstractSessionInputBuffer;
+import org.apache.http.io.SessionInputBuffer;
+import org.apache.http.params.HttpParams;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+
+/**
+ * Server connection that replays bytes already read off the socket before
+ * reading from the socket itself. The selector engine reads request headers
+ * on a non-blocking channel, so by the time a worker gets the connection
+ * those bytes are no longer in the socket.
+ */
+public class PrefetchedHttpServerConnection extends DefaultHttpServerConnection {
+
+  private final byte[] mPrefetched;
+
+  private PrefetchedInputBuffer mInputBuffer;
+
+  /**
+   * @param prefetched Bytes to serve before the socket data, may be null.
+   */
+  public PrefetchedHttpServerConnection(byte[] prefetched) {
+    mPrefetched = prefetched;
+  }
+
+  @Override
+  protected SessionInputBuffer createHttpDataReceiver(Socket socket,
+      int buffersize, HttpParams params) throws IOException {
+    mInputBuffer = new PrefetchedInputBuffer(socket, mPrefetched, buffersize,
+        params);
+    return mInputBuffer;
+  }
+
+  /**
+   * Returns whether bytes of a further, pipelined request have already been
+   * read off the socket into our buffer.
+   */
+  public boolean hasBufferedInput() {
+    return mInputBuffer != null && mInputBuffer.hasBufferedData();
+  }
+
+  private static class PrefetchedInputBuffer
+      extends AbstractSessionInputBuffer {
+
+    private final Socket mSocket;
+
+    /* Prefetched bytes not yet pulled into the session buffer. */
+    private ByteArrayInputStream mPrefetchedInput;
+
+    PrefetchedInputBuffer(Socket socket, byte[] prefetched, int buffersize,
+        HttpParams params) throws IOException {
+      mSocket = socket;
+      if (buffersize < 0) {
+        buffersize = socket.getReceiveBufferSize();
+      }
+      if (buffersize < 1024) {
+        buffersize = 1024;
+      }
+      InputStream input = socket.getInputStream();
+      if (prefetched != null && prefetched.length > 0) {
+        mPrefetchedInput = new ByteArrayInputStream(prefetched);
+        input = new SequenceInputStream(mPrefetchedInput, input);
+      }
+      init(input, buffersize, params);
+    }
+
+    @Override
+    protected boolean hasBufferedData() {
+      return super.hasBufferedData()
+          || (mPrefetchedInput != null && mPrefetchedInput.available() > 0);
+    }
+
+    public boolean isDataAvailable(int timeout) throws IOException {
+      boolean result = hasBufferedData();
+      if (!result) {
+        int oldTimeout = mSocket.getSoTimeout();
+        try {
+          mSocket.setSoTimeout(timeout);
+          fillBuffer();
+          result = hasBufferedData();
+        } catch (InterruptedIOException e) {
+          /* Timed out, nothing to read. */
+        } finally {
+          mSocket.setSoTimeout(oldTimeout);
+        }
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,138 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A least recently used cache of entries holding something that responses
+ * may still be reading after the entry is dropped, like an open channel or a
+ * file. Entries are reference counted, and what they hold is only discarded
+ * once they have been dropped and the last user has released them.
+ *
+ * Subclasses keep their budgets in {@link #onAdded} and {@link #onEvicted}.
+ * Those and the other hooks are called holding the cache's lock.
+ */
+abstract class RefCountedCache<K, E extends RefCountedCache.Entry> {
+
+  /* In access order, so the eldest entry is the least recently used. */
+  private final LinkedHashMap<K, E> mEntries =
+      new LinkedHashMap<K, E>(16, 0.75f, true);
+
+  /**
+   * Looks up an entry and marks it in use.
+   *
+   * @return The entry, to be handed back to {@link #release}, or null.
+   */
+  synchronized E acquire(K key) {
+    E entry = mEntries.get(key);
+    if (entry != null) {
+      entry.mUsers++;
+    }
+    return entry;
+  }
+
+  /**
+   * Adds an entry and marks it in use. If another thread got there first,
+   * its entry is returned and the new one discarded.
+   */
+  synchronized E add(K key, E entry) {
+    E existing = mEntries.get(key);
+    if (existing != null) {
+      existing.mUsers++;
+      discard(entry);
+      return existing;
+    }
+    entry.mUsers = 1;
+    mEntries.put(key, entry);
+    onAdded(entry);
+    trim();
+    return entry;
+  }
+
+  synchronized void release(E entry) {
+    entry.mUsers--;
+    if (entry.mEvicted && entry.mUsers == 0) {
+      discard(entry);
+    }
+  }
+
+  /* Drops an entry that turned out to be stale. */
+  synchronized void remove(K key, E entry) {
+    if (mEntries.get(key) == entry) {
+      mEntries.remove(key);
+      evict(entry);
+    }
+  }
+
+  /* Drops every entry. */
+  synchronized void clear() {
+    for (E entry : mEntries.values()) {
+      evict(entry);
+    }
+    mEntries.clear();
+  }
+
+  /* The number of entries, for subclasses holding the lock. */
+  protected final int size() {
+    return mEntries.size();
+  }
+
+  /**
+   * Drops least recently used entries while the cache is over budget. Only
+   * for subclasses holding the lock, whose budget grew.
+   */
+  protected final void trim() {
+    Iterator<E> entries = mEntries.values().iterator();
+    while (isOverBudget() && entries.hasNext()) {
+      E eldest = entries.next();
+      if (shouldEvict(eldest)) {
+        entries.remove();
+        evict(eldest);
+      }
+    }
+  }
+
+  private void evict(E entry) {
+    entry.mEvicted = true;
+    onEvicted(entry);
+    if (entry.mUsers == 0) {
+      discard(entry);
+    }
+  }
+
+  protected abstract boolean isOverBudget();
+
+  /* Whether dropping this entry brings the cache closer to its budget. */
+  protected boolean shouldEvict(E eldest) {
+    return true;
+  }
+
+  /* Counts a new entry against the budget. */
+  protected abstract void onAdded(E entry);
+
+  /* Takes a dropped entry off the budget. */
+  protected abstract void onEvicted(E entry);
+
+  /* Frees what an entry holds, once nothing can use it any more. */
+  protected abstract void discard(E entry);
+
+  /* Guarded by the cache. */
+  static class Entry {
+    int mUsers;
+    boolean mEvicted;
+  }
+}
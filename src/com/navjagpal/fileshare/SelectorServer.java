@@ -0,0 +1,432 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.util.Log;
+
+/**
+ * Event loop that accepts connections, reads request headers and writes file
+ * bodies on non-blocking channels.
+ *
+ * Connections only reach a worker thread from the {@link ConnectionExecutor}
+ * once a complete request head has arrived, so idle and slow clients cost a
+ * selection key and a small buffer instead of a thread. Workers hand idle
+ * keep-alive connections back with {@link #resume}, and file bodies with
+ * {@link #send}, so a slow download doesn't hold a worker either.
+ */
+public class SelectorServer {
+
+  private static final String TAG = "FileSharer SelectorServer";
+
+  /* Requests with larger headers are dropped. */
+  private static final int MAX_HEADER_BYTES = 16 * 1024;
+
+  /* How long a client gets to send a complete request head. */
+  private static final long HEADER_TIMEOUT_MILLIS = 30 * 1000;
+
+  /* How long a client may take no part of a body before it is dropped. */
+  private static final long SEND_TIMEOUT_MILLIS = 60 * 1000;
+
+  /* How often we look for connections that ran out of time. */
+  private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+  public interface ConnectionHandler {
+    /**
+     * Serves a connection on a worker thread. The socket is in blocking mode.
+     *
+     * @param socket The client socket, owned by the handler from now on.
+     * @param prefetched Bytes already read from the socket.
+     * @param requestCount Requests already served on this connection.
+     */
+    public void handleConnection(Socket socket, byte[] prefetched,
+        int requestCount);
+  }
+
+  private final ServerSocketChannel mServerSocketChannel;
+
+  private final Selector mSelector;
+
+  private final ConnectionExecutor mConnectionExecutor;
+
+  private final ConnectionHandler mHandler;
+
+  /* Shared by all connections, only touched by the selector thread. */
+  private final ByteBuffer mReadBuffer = ByteBuffer.allocate(MAX_HEADER_BYTES);
+
+  /* Connections with a complete request head, waiting to be dispatched. */
+  private final List<PendingConnection> mReady =
+      new ArrayList<PendingConnection>();
+
+  /* Connections handed back by workers, registered by the selector thread. */
+  private final ConcurrentLinkedQueue<PendingConnection> mResumed =
+      new ConcurrentLinkedQueue<PendingConnection>();
+
+  /* Bodies handed over by workers, registered by the selector thread. */
+  private final ConcurrentLinkedQueue<Transfer> mTransfers =
+      new ConcurrentLinkedQueue<Transfer>();
+
+  public SelectorServer(ServerSocketChannel serverSocketChannel,
+      ConnectionExecutor connectionExecutor, ConnectionHandler handler)
+      throws IOException {
+    mSelector = Selector.open();
+    mServerSocketChannel = serverSocketChannel;
+    mConnectionExecutor = connectionExecutor;
+    mHandler = handler;
+  }
+
+  /**
+   * Hands an idle keep-alive connection back to the event loop, which waits
+   * for its next request without holding a worker. May be called from any
+   * thread.
+   *
+   * @param channel The client channel, in blocking mode.
+   * @param requestCount Requests already served on this connection.
+   * @param idleTimeoutMillis How long to wait for the next request.
+   */
+  public void resume(SocketChannel channel, int requestCount,
+      long idleTimeoutMillis) {
+    mResumed.add(new PendingConnection(channel, requestCount,
+        idleTimeoutMillis));
+    mSelector.wakeup();
+  }
+
+  /**
+   * Takes over writing a response body, a piece whenever the client can take
+   * more. Once it has been sent the connection waits for its next request as
+   * with {@link #resume}, or is closed. May be called from any thread.
+   *
+   * @param channel The client channel, in blocking mode, with the response
+   *     head already sent.
+   * @param entity The body, consumed once sent or dropped.
+   * @param requestCount Requests already served on this connection.
+   * @param keepAlive Whether to wait for another request after this one.
+   * @param idleTimeoutMillis How long to wait for the next request.
+   */
+  public void send(SocketChannel channel, TransferableEntity entity,
+      int requestCount, boolean keepAlive, long idleTimeoutMillis) {
+    mTransfers.add(new Transfer(channel, entity, requestCount, keepAlive,
+        idleTimeoutMillis));
+    mSelector.wakeup();
+  }
+
+  /**
+   * Runs the event loop until the calling thread is interrupted.
+   */
+  public void run() throws IOException {
+    mServerSocketChannel.configureBlocking(false);
+    mServerSocketChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+    long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL_MILLIS;
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        mSelector.select(SWEEP_INTERVAL_MILLIS);
+        registerResumed();
+        registerTransfers();
+        Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+          } else if (key.isReadable()) {
+            read(key);
+          } else if (key.isWritable()) {
+            write(key);
+          }
+        }
+        long now = System.currentTimeMillis();
+        if (now >= nextSweep) {
+          closeExpired(now);
+          nextSweep = now + SWEEP_INTERVAL_MILLIS;
+        }
+        if (!mReady.isEmpty()) {
+          dispatchReady();
+        }
+      }
+      Log.i(TAG, "Received interrupt to shutdown.");
+    } finally {
+      for (SelectionKey key : mSelector.keys()) {
+        closeChannel(key);
+      }
+      PendingConnection connection;
+      while ((connection = mResumed.poll()) != null) {
+        closeQuietly(connection.mChannel);
+      }
+      Transfer transfer;
+      while ((transfer = mTransfers.poll()) != null) {
+        transfer.release();
+        closeQuietly(transfer.mChannel);
+      }
+      mSelector.close();
+      mServerSocketChannel.close();
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel;
+    while ((channel = mServerSocketChannel.accept()) != null) {
+      Log.d(TAG, "Socket accepted");
+      channel.configureBlocking(false);
+      channel.register(mSelector, SelectionKey.OP_READ,
+          new PendingConnection(channel, 0, HEADER_TIMEOUT_MILLIS));
+    }
+  }
+
+  private void registerResumed() {
+    PendingConnection connection;
+    while ((connection = mResumed.poll()) != null) {
+      try {
+        connection.mChannel.configureBlocking(false);
+        connection.mChannel.register(mSelector, SelectionKey.OP_READ,
+            connection);
+      } catch (IOException e) {
+        Log.d(TAG, "Problem resuming connection " + e.toString());
+        closeQuietly(connection.mChannel);
+      }
+    }
+  }
+
+  private void registerTransfers() {
+    Transfer transfer;
+    while ((transfer = mTransfers.poll()) != null) {
+      try {
+        transfer.mChannel.configureBlocking(false);
+        transfer.mChannel.register(mSelector, SelectionKey.OP_WRITE,
+            transfer);
+      } catch (IOException e) {
+        Log.d(TAG, "Problem taking over response " + e.toString());
+        transfer.release();
+        closeQuietly(transfer.mChannel);
+      }
+    }
+  }
+
+  /**
+   * Writes what the client takes of a body. A finished keep-alive connection
+   * goes back to waiting for its next request on the same key.
+   */
+  private void write(SelectionKey key) {
+    Transfer transfer = (Transfer) key.attachment();
+    try {
+      long count = transfer.mEntity.transferTo(transfer.mOffset,
+          transfer.mChannel);
+      if (count > 0) {
+        transfer.mOffset += count;
+        transfer.mDeadline = System.currentTimeMillis() + SEND_TIMEOUT_MILLIS;
+      }
+    } catch (IOException e) {
+      Log.d(TAG, "Problem sending response " + e.toString());
+      closeChannel(key);
+      return;
+    }
+    if (transfer.mOffset < transfer.mEntity.getContentLength()) {
+      return;
+    }
+    transfer.release();
+    if (transfer.mKeepAlive) {
+      key.interestOps(SelectionKey.OP_READ);
+      key.attach(new PendingConnection(transfer.mChannel,
+          transfer.mRequestCount, transfer.mIdleTimeoutMillis));
+    } else {
+      closeChannel(key);
+    }
+  }
+
+  private void read(SelectionKey key) {
+    PendingConnection connection = (PendingConnection) key.attachment();
+    mReadBuffer.clear();
+    mReadBuffer.limit(MAX_HEADER_BYTES - connection.mLength);
+    int read;
+    try {
+      read = connection.mChannel.read(mReadBuffer);
+    } catch (IOException e) {
+      read = -1;
+    }
+    if (read < 0) {
+      closeChannel(key);
+      return;
+    } else if (read == 0) {
+      return;
+    }
+    mReadBuffer.flip();
+    connection.append(mReadBuffer);
+    if (connection.hasCompleteHead()) {
+      key.cancel();
+      mReady.add(connection);
+    } else if (connection.mLength >= MAX_HEADER_BYTES) {
+      Log.w(TAG, "Request head too large, dropping connection");
+      closeChannel(key);
+    }
+  }
+
+  private void dispatchReady() {
+    /* Cancelled keys are only deregistered by the next selection, and a
+     * channel can't go back to blocking mode while it is registered. */
+    try {
+      mSelector.selectNow();
+    } catch (IOException e) {
+      Log.e(TAG, "Problem flushing cancelled keys " + e.toString());
+    }
+    for (PendingConnection connection : mReady) {
+      final Socket socket = connection.mChannel.socket();
+      final byte[] prefetched = connection.getBytes();
+      final int requestCount = connection.mRequestCount;
+      try {
+        connection.mChannel.configureBlocking(true);
+      } catch (IOException e) {
+        Log.e(TAG, "Problem switching to blocking mode " + e.toString());
+        closeQuietly(connection.mChannel);
+        continue;
+      }
+      mConnectionExecutor.execute(socket, new Runnable() {
+        public void run() {
+          mHandler.handleConnection(socket, prefetched, requestCount);
+        }
+      });
+    }
+    mReady.clear();
+  }
+
+  private void closeExpired(long now) {
+    for (SelectionKey key : mSelector.keys()) {
+      Object attachment = key.attachment();
+      if ((attachment instanceof PendingConnection
+          && ((PendingConnection) attachment).mDeadline < now)
+          || (attachment instanceof Transfer
+              && ((Transfer) attachment).mDeadline < now)) {
+        closeChannel(key);
+      }
+    }
+  }
+
+  private static void closeChannel(SelectionKey key) {
+    key.cancel();
+    if (key.attachment() instanceof Transfer) {
+      ((Transfer) key.attachment()).release();
+    }
+    if (key.channel() instanceof SocketChannel) {
+      closeQuietly((SocketChannel) key.channel());
+    }
+  }
+
+  private static void closeQuietly(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      Log.d(TAG, "Problem closing channel " + e.toString());
+    }
+  }
+
+  /* A response body being written. */
+  private static class Transfer {
+    final SocketChannel mChannel;
+    final TransferableEntity mEntity;
+    final int mRequestCount;
+    final boolean mKeepAlive;
+    final long mIdleTimeoutMillis;
+    long mOffset;
+    long mDeadline;
+    boolean mReleased;
+
+    Transfer(SocketChannel channel, TransferableEntity entity,
+        int requestCount, boolean keepAlive, long idleTimeoutMillis) {
+      mChannel = channel;
+      mEntity = entity;
+      mRequestCount = requestCount;
+      mKeepAlive = keepAlive;
+      mIdleTimeoutMillis = idleTimeoutMillis;
+      mDeadline = System.currentTimeMillis() + SEND_TIMEOUT_MILLIS;
+    }
+
+    /* Lets go of the body, whether or not all of it was sent. */
+    void release() {
+      if (mReleased) {
+        return;
+      }
+      mReleased = true;
+      try {
+        mEntity.consumeContent();
+      } catch (IOException e) {
+        Log.d(TAG, "Problem releasing response " + e.toString());
+      }
+    }
+  }
+
+  /* A connection whose request head is still arriving. */
+  private static class PendingConnection {
+    final SocketChannel mChannel;
+    final int mRequestCount;
+    final long mDeadline;
+    /* Allocated on the first read, idle connections don't need it. */
+    byte[] mData;
+    int mLength;
+    int mScanned;
+
+    PendingConnection(SocketChannel channel, int requestCount,
+        long timeoutMillis) {
+      mChannel = channel;
+      mRequestCount = requestCount;
+      mDeadline = System.currentTimeMillis() + timeoutMillis;
+    }
+
+    void append(ByteBuffer buffer) {
+      int count = buffer.remaining();
+      if (mData == null) {
+        mData = new byte[Math.max(count, 1024)];
+      } else if (mLength + count > mData.length) {
+        byte[] data = new byte[Math.max(mLength + count, mData.length * 2)];
+        System.arraycopy(mData, 0, data, 0, mLength);
+        mData = data;
+      }
+      buffer.get(mData, mLength, count);
+      mLength += count;
+    }
+
+    /* Looks for the blank line that ends the request head. */
+    boolean hasCompleteHead() {
+      for (int i = Math.max(mScanned, 1); i < mLength; i++) {
+        if (mData[i] == '\n' && (mData[i - 1] == '\n'
+            || (i >= 3 && mData[i - 1] == '\r' && mData[i - 2] == '\n'
+                && mData[i - 3] == '\r'))) {
+          return true;
+        }
+      }
+      mScanned = mLength;
+      return false;
+    }
+
+    byte[] getBytes() {
+      byte[] bytes = new byte[mLength];
+      if (mLength > 0) {
+        System.arraycopy(mData, 0, bytes, 0, mLength);
+      }
+      return bytes;
+    }
+  }
+}
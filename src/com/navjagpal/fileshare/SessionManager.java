@@ -0,0 +1,32 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+/**
+ * Issues and checks the tokens that keep web users logged in.
+ */
+public interface SessionManager {
+
+  /* Starts a session and returns its token. */
+  public String create();
+
+  public boolean isValid(String token);
+
+  /* Ends every session, for when the password changes. */
+  public void invalidateAll();
+
+  /* Releases background resources once the server stops. */
+  public void shutdown();
+}
@@ -0,0 +1,198 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logged in sessions. Checking a session is a hash lookup; the cookies
+ * database is only written to, in the background, so sessions survive a
+ * restart of the server.
+ *
+ * Every session lives for the same time, so sessions expire in the order
+ * they were created. A queue in that order lets the sweeper and the size
+ * limit drop the oldest sessions without scanning the map.
+ *
+ * Stored sessions are tagged with the generation of the session key, so
+ * rotating the key while the server is stopped still logs everybody out.
+ */
+public class SessionStore implements SessionManager {
+
+  private static final String TAG = "FileSharer SessionStore";
+
+  private static final long SWEEP_INTERVAL_SECONDS = 5 * 60;
+
+  /* Beyond this many sessions the oldest ones are dropped. */
+  private static final int MAX_SESSIONS = 1024;
+
+  private final SQLiteDatabase mDatabase;
+
+  private final SharedPreferences mSharedPreferences;
+
+  /* Stored in the name column of the cookies table. */
+  private volatile String mGeneration;
+
+  private final long mLifetimeMillis;
+
+  private final SecureRandom mRandom = new SecureRandom();
+
+  /* Session token to expiry time in milliseconds. */
+  private final ConcurrentHashMap<String, Long> mSessions =
+      new ConcurrentHashMap<String, Long>();
+
+  /* Tokens in order of expiry, may contain tokens already removed. */
+  private final ConcurrentLinkedQueue<String> mExpiryOrder =
+      new ConcurrentLinkedQueue<String>();
+
+  /* Runs database writes and the sweeper, one at a time. */
+  private final ScheduledExecutorService mWriter;
+
+  /**
+   * Loads the unexpired sessions from the database and starts the sweeper.
+   *
+   * @param database The cookies database.
+   * @param sharedPreferences Where the session key is kept.
+   * @param lifetimeSeconds How long a session stays valid.
+   */
+  public SessionStore(SQLiteDatabase database,
+      SharedPreferences sharedPreferences, int lifetimeSeconds) {
+    mDatabase = database;
+    mSharedPreferences = sharedPreferences;
+    mGeneration = SignedSessionManager.getKeyGeneration(
+        SignedSessionManager.getKey(sharedPreferences));
+    mLifetimeMillis = lifetimeSeconds * 1000L;
+    mWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "FileSharer sessions");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    load();
+    mWriter.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        /* An exception would cancel every later sweep. */
+        try {
+          sweep();
+        } catch (RuntimeException e) {
+          Log.e(TAG, "Problem sweeping sessions " + e.toString());
+        }
+      }
+    }, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /* Creates a session and returns its token. */
+  public String create() {
+    byte[] bytes = new byte[16];
+    mRandom.nextBytes(bytes);
+    StringBuilder token = new StringBuilder();
+    for (byte b : bytes) {
+      token.append(Character.forDigit((b >> 4) & 0xf, 16));
+      token.append(Character.forDigit(b & 0xf, 16));
+    }
+    final String value = token.toString();
+    final String generation = mGeneration;
+    final long expiry = System.currentTimeMillis() + mLifetimeMillis;
+    mSessions.put(value, expiry);
+    mExpiryOrder.add(value);
+    while (mSessions.size() > MAX_SESSIONS) {
+      String oldest = mExpiryOrder.poll();
+      if (oldest == null) {
+        break;
+      }
+      mSessions.remove(oldest);
+    }
+    mWriter.execute(new Runnable() {
+      public void run() {
+        ContentValues values = new ContentValues();
+        values.put("name", generation);
+        values.put("value", value);
+        values.put("expiry", expiry / 1000);
+        mDatabase.insert("cookies", "name", values);
+      }
+    });
+    return value;
+  }
+
+  public boolean isValid(String token) {
+    Long expiry = mSessions.get(token);
+    return expiry != null && expiry > System.currentTimeMillis();
+  }
+
+  /* Ends every session, called once the key has been rotated. */
+  public void invalidateAll() {
+    mGeneration = SignedSessionManager.getKeyGeneration(
+        SignedSessionManager.getKey(mSharedPreferences));
+    mSessions.clear();
+    mExpiryOrder.clear();
+    mWriter.execute(new Runnable() {
+      public void run() {
+        mDatabase.delete("cookies", null, null);
+      }
+    });
+  }
+
+  /* Stops the sweeper once pending writes are done. */
+  public void shutdown() {
+    mWriter.shutdown();
+  }
+
+  private void load() {
+    long now = System.currentTimeMillis();
+    Cursor c = mDatabase.query("cookies", new String[] {"value", "expiry"},
+        "name = ? and expiry > ?", new String[] {mGeneration, "" + now / 1000},
+        null, null, "expiry");
+    try {
+      while (c.moveToNext()) {
+        String token = c.getString(0);
+        mSessions.put(token, c.getLong(1) * 1000);
+        mExpiryOrder.add(token);
+      }
+    } finally {
+      c.close();
+    }
+    Log.i(TAG, "Loaded " + mSessions.size() + " sessions");
+  }
+
+  /* Drops expired sessions from memory and from the database. */
+  private void sweep() {
+    long now = System.currentTimeMillis();
+    String token;
+    while ((token = mExpiryOrder.peek()) != null) {
+      Long expiry = mSessions.get(token);
+      if (expiry != null && expiry > now) {
+        break;
+      }
+      mExpiryOrder.poll();
+      if (expiry != null) {
+        mSessions.remove(token);
+      }
+    }
+    mDatabase.delete("cookies", "expiry < ? or name != ?",
+        new String[] {"" + now / 1000, mGeneration});
+  }
+}
@@ -0,0 +1,373 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.SQLException;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares a file, or everything under a directory, in the background.
+ *
+ * Directories are walked in parallel, each one a task on a small pool.
+ * Files found are queued to a single inserter thread that adds them to the
+ * shared folder in batches, one provider transaction per batch. The queue
+ * is bounded, so walking never gets far ahead of inserting.
+ *
+ * Only one job runs at a time. Files picked while it runs are queued, and
+ * each is shared in turn once the jobs before it are done.
+ *
+ * Jobs are written to a journal when they start or are queued and removed
+ * when they end. If the process dies in between, {@link #resumePending}
+ * starts them again; files already shared are skipped by the provider, so
+ * walking the tree a second time is all it costs.
+ */
+public class ShareJob {
+
+  private static final String TAG = "FileSharer ShareJob";
+
+  /* Journal entries in the service preferences. */
+  private static final String PREFS_JOB_FILE = "SHARE_JOB_FILE";
+  private static final String PREFS_JOB_FOLDER = "SHARE_JOB_FOLDER";
+  /* Files and folders of queued jobs, one per line. */
+  private static final String PREFS_JOB_QUEUE = "SHARE_JOB_QUEUE";
+
+  private static final int BATCH_SIZE = 500;
+
+  /* Marks the end of the walk in the queue of files found. */
+  private static final Uri END = Uri.parse("end:");
+
+  private static ShareJob sCurrent;
+
+  /* Files and folders of jobs waiting for the current one. */
+  private static final List<Uri[]> sQueue = new ArrayList<Uri[]>();
+
+  /**
+   * Follows a job, and the jobs queued after it: the listener is handed on
+   * to the next job when one ends.
+   */
+  public interface Listener {
+    /* Called on the inserter thread after every batch. */
+    public void onProgress(ShareJob job);
+
+    /* Called on the inserter thread once no job is left, or on cancel. */
+    public void onFinished(ShareJob job);
+  }
+
+  private final Context mContext;
+
+  private final Uri mFile;
+
+  private final Uri mFolder;
+
+  private final ThreadPoolExecutor mWalkers;
+
+  private final LinkedBlockingQueue<Uri> mFound =
+      new LinkedBlockingQueue<Uri>(4 * BATCH_SIZE);
+
+  /* Directories queued or being walked. */
+  private final AtomicInteger mPendingDirectories = new AtomicInteger();
+
+  private final AtomicLong mFoundCount = new AtomicLong();
+
+  private final AtomicLong mAddedCount = new AtomicLong();
+
+  private final long mStartTime = System.currentTimeMillis();
+
+  private volatile boolean mCancelled;
+
+  private volatile boolean mFinished;
+
+  private volatile Listener mListener;
+
+  private ShareJob(Context context, Uri file, Uri folder) {
+    mContext = context.getApplicationContext();
+    mFile = file;
+    mFolder = folder;
+    int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+    mWalkers = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger mCount = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "FileSharer share " +
+                mCount.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+          }
+        });
+  }
+
+  /* Returns the job in progress, or null. */
+  public static synchronized ShareJob getCurrent() {
+    return sCurrent;
+  }
+
+  /**
+   * Starts sharing a file or directory. If a job is already running, this
+   * one is queued and starts once the jobs before it are done.
+   *
+   * @return The job in progress, which is an earlier one if this was queued.
+   */
+  public static synchronized ShareJob start(Context context, Uri file,
+      Uri folder) {
+    if (sCurrent != null) {
+      Log.i(TAG, "Queueing sharing " + file);
+      sQueue.add(new Uri[] {file, folder});
+      saveQueue(context);
+      return sCurrent;
+    }
+    getPreferences(context).edit()
+        .putString(PREFS_JOB_FILE, file.toString())
+        .putString(PREFS_JOB_FOLDER, folder.toString())
+        .commit();
+    sCurrent = new ShareJob(context, file, folder);
+    sCurrent.run();
+    return sCurrent;
+  }
+
+  /* Returns the number of jobs waiting for the current one. */
+  public static synchronized int getQueuedCount() {
+    return sQueue.size();
+  }
+
+  /**
+   * Restarts jobs that were interrupted by the process being killed, along
+   * with the jobs queued after them.
+   *
+   * @return The job, or null if there was nothing to resume.
+   */
+  public static synchronized ShareJob resumePending(Context context) {
+    if (sCurrent != null) {
+      return null;
+    }
+    SharedPreferences preferences = getPreferences(context);
+    String[] queue = preferences.getString(PREFS_JOB_QUEUE, "").split("\n");
+    for (int i = 0; i + 1 < queue.length; i += 2) {
+      sQueue.add(new Uri[] {Uri.parse(queue[i]), Uri.parse(queue[i + 1])});
+    }
+    String file = preferences.getString(PREFS_JOB_FILE, null);
+    String folder = preferences.getString(PREFS_JOB_FOLDER, null);
+    if (file != null && folder != null) {
+      Log.i(TAG, "Resuming sharing " + file);
+      return start(context, Uri.parse(file), Uri.parse(folder));
+    }
+    return startNext(context);
+  }
+
+  /* Starts the first queued job, if there is one. */
+  private static ShareJob startNext(Context context) {
+    if (sQueue.isEmpty()) {
+      return null;
+    }
+    Uri[] next = sQueue.remove(0);
+    saveQueue(context);
+    return start(context, next[0], next[1]);
+  }
+
+  private static void saveQueue(Context context) {
+    StringBuilder queue = new StringBuilder();
+    for (Uri[] job : sQueue) {
+      queue.append(job[0]).append('\n').append(job[1]).append('\n');
+    }
+    getPreferences(context).edit()
+        .putString(PREFS_JOB_QUEUE, queue.toString())
+        .commit();
+  }
+
+  private static SharedPreferences getPreferences(Context context) {
+    return context.getSharedPreferences(FileSharingService.PREFS_NAME,
+        Context.MODE_PRIVATE);
+  }
+
+  public void setListener(Listener listener) {
+    mListener = listener;
+  }
+
+  /* Stops the job and drops the queued ones. Files added stay shared. */
+  public void cancel() {
+    synchronized (ShareJob.class) {
+      sQueue.clear();
+      saveQueue(mContext);
+    }
+    mCancelled = true;
+    mWalkers.shutdownNow();
+    /* Wake the inserter if it is waiting for files. */
+    mFound.clear();
+    mFound.offer(END);
+  }
+
+  public boolean isCancelled() {
+    return mCancelled;
+  }
+
+  public boolean isFinished() {
+    return mFinished;
+  }
+
+  public long getFoundCount() {
+    return mFoundCount.get();
+  }
+
+  public long getAddedCount() {
+    return mAddedCount.get();
+  }
+
+  /* Files found per second since the job started. */
+  public long getFilesPerSecond() {
+    long elapsed = Math.max(System.currentTimeMillis() - mStartTime, 1);
+    return mFoundCount.get() * 1000 / elapsed;
+  }
+
+  private void run() {
+    File root = FileProvider.getFile(mFile);
+    if (root != null && root.isDirectory()) {
+      walkLater(root);
+    } else {
+      if (root == null || root.isFile()) {
+        mFound.offer(mFile);
+        mFoundCount.incrementAndGet();
+      }
+      mFound.offer(END);
+    }
+    Thread inserter = new Thread(new Runnable() {
+      public void run() {
+        insertFound();
+      }
+    }, "FileSharer share inserter");
+    inserter.setDaemon(true);
+    inserter.start();
+  }
+
+  private void walkLater(final File directory) {
+    mPendingDirectories.incrementAndGet();
+    try {
+      mWalkers.execute(new Runnable() {
+        public void run() {
+          try {
+            walk(directory);
+          } catch (InterruptedException e) {
+            /* Cancelled. */
+          } finally {
+            walked();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      /* The pool was shut down by cancel() or finish(). */
+      walked();
+    }
+  }
+
+  /* Counts a directory as done, ending the walk after the last one. */
+  private void walked() {
+    if (mPendingDirectories.decrementAndGet() == 0) {
+      mFound.offer(END);
+    }
+  }
+
+  private void walk(File directory) throws InterruptedException {
+    File[] children = directory.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      if (mCancelled) {
+        return;
+      }
+      if (child.isDirectory()) {
+        walkLater(child);
+      } else {
+        mFound.put(Uri.withAppendedPath(FileProvider.CONTENT_URI,
+            child.getAbsolutePath()));
+        mFoundCount.incrementAndGet();
+      }
+    }
+  }
+
+  private void insertFound() {
+    ContentResolver contentResolver = mContext.getContentResolver();
+    List<Uri> batch = new ArrayList<Uri>(BATCH_SIZE);
+    boolean done = false;
+    try {
+      while (!done && !mCancelled) {
+        batch.add(mFound.take());
+        mFound.drainTo(batch, BATCH_SIZE - 1);
+        if (batch.remove(END)) {
+          done = true;
+        }
+        if (!batch.isEmpty() && !mCancelled) {
+          try {
+            mAddedCount.addAndGet(FileSharingProvider.addFilesToFolder(
+                contentResolver, batch, mFolder));
+          } catch (SQLException e) {
+            Log.w(TAG, "Error adding files to folder " + mFolder);
+          }
+        }
+        batch.clear();
+        Listener listener = mListener;
+        if (listener != null) {
+          listener.onProgress(this);
+        }
+      }
+    } catch (InterruptedException e) {
+      Log.w(TAG, "Inserter interrupted");
+    } finally {
+      finish();
+    }
+  }
+
+  private void finish() {
+    mWalkers.shutdownNow();
+    ShareJob next;
+    synchronized (ShareJob.class) {
+      getPreferences(mContext).edit()
+          .remove(PREFS_JOB_FILE)
+          .remove(PREFS_JOB_FOLDER)
+          .commit();
+      sCurrent = null;
+      next = startNext(mContext);
+    }
+    mFinished = true;
+    Log.i(TAG, (mCancelled ? "Cancelled" : "Finished") + " sharing " + mFile
+        + ": added " + mAddedCount.get() + " of " + mFoundCount.get()
+        + " files, " + getFilesPerSecond() + " files/s");
+    Listener listener = mListener;
+    if (listener == null) {
+      return;
+    }
+    if (next != null) {
+      next.setListener(listener);
+      listener.onProgress(next);
+    } else {
+      listener.onFinished(this);
+    }
+  }
+}
@@ -0,0 +1,195 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import android.content.SharedPreferences;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Stateless sessions. A token carries its own expiry time and an HMAC over
+ * it, so checking one needs no storage at all. Rotating the key, which
+ * {@link FileShare} does whenever the password changes, invalidates every
+ * token issued before.
+ */
+public class SignedSessionManager implements SessionManager {
+
+  private static final String ALGORITHM = "HmacSHA1";
+
+  private static final int KEY_BYTES = 32;
+
+  private static final int NONCE_BYTES = 8;
+
+  private static final SecureRandom sRandom = new SecureRandom();
+
+  private final SharedPreferences mSharedPreferences;
+
+  private final long mLifetimeMillis;
+
+  /* Not thread safe, guarded by itself. Replaced when the key rotates. */
+  private Mac mMac;
+
+  /**
+   * @param sharedPreferences Where the key is kept.
+   * @param lifetimeSeconds How long a token stays valid.
+   */
+  public SignedSessionManager(SharedPreferences sharedPreferences,
+      int lifetimeSeconds) {
+    mSharedPreferences = sharedPreferences;
+    mLifetimeMillis = lifetimeSeconds * 1000L;
+    mMac = createMac(getKey(sharedPreferences));
+  }
+
+  /**
+   * Returns the signing key, generating one the first time.
+   */
+  public static synchronized byte[] getKey(SharedPreferences preferences) {
+    String key = preferences.getString(FileSharingService.PREFS_SESSION_KEY,
+        null);
+    if (key == null) {
+      return rotateKey(preferences);
+    }
+    return fromHex(key);
+  }
+
+  /**
+   * Replaces the signing key, logging out every web user.
+   *
+   * @return The new key.
+   */
+  public static synchronized byte[] rotateKey(SharedPreferences preferences) {
+    byte[] key = new byte[KEY_BYTES];
+    sRandom.nextBytes(key);
+    preferences.edit().putString(FileSharingService.PREFS_SESSION_KEY,
+        toHex(key)).commit();
+    return key;
+  }
+
+  /**
+   * Returns a short fingerprint of a key, so sessions stored elsewhere can
+   * be tied to the key that was current when they were made.
+   */
+  public static String getKeyGeneration(byte[] key) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-1").digest(key);
+      return toHex(hash).substring(0, 16);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /* Tokens look like <expiry seconds>.<nonce>.<mac>, all in hex. */
+  public String create() {
+    byte[] nonce = new byte[NONCE_BYTES];
+    sRandom.nextBytes(nonce);
+    String payload = Long.toHexString(
+        (System.currentTimeMillis() + mLifetimeMillis) / 1000)
+        + "." + toHex(nonce);
+    return payload + "." + toHex(sign(payload));
+  }
+
+  public boolean isValid(String token) {
+    int macStart = token.lastIndexOf('.');
+    int nonceStart = token.indexOf('.');
+    if (nonceStart <= 0 || macStart <= nonceStart) {
+      return false;
+    }
+    long expiry;
+    byte[] mac;
+    try {
+      expiry = Long.parseLong(token.substring(0, nonceStart), 16);
+      mac = fromHex(token.substring(macStart + 1));
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    if (expiry * 1000 <= System.currentTimeMillis()) {
+      return false;
+    }
+    return isEqual(mac, sign(token.substring(0, macStart)));
+  }
+
+  /* Picks up the key FileShare rotated. */
+  public void invalidateAll() {
+    Mac mac = createMac(getKey(mSharedPreferences));
+    synchronized (this) {
+      mMac = mac;
+    }
+  }
+
+  public void shutdown() {
+  }
+
+  private byte[] sign(String payload) {
+    Mac mac;
+    synchronized (this) {
+      mac = mMac;
+    }
+    synchronized (mac) {
+      return mac.doFinal(payload.getBytes());
+    }
+  }
+
+  private static Mac createMac(byte[] key) {
+    try {
+      Mac mac = Mac.getInstance(ALGORITHM);
+      mac.init(new SecretKeySpec(key, ALGORITHM));
+      return mac;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /* Compares in time independent of where the arrays differ. */
+  private static boolean isEqual(byte[] a, byte[] b) {
+    if (a.length != b.length) {
+      return false;
+    }
+    int difference = 0;
+    for (int i = 0; i < a.length; i++) {
+      difference |= a[i] ^ b[i];
+    }
+    return difference == 0;
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+      hex.append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  private static byte[] fromHex(String hex) {
+    if (hex.length() % 2 != 0) {
+      throw new NumberFormatException("Odd length " + hex);
+    }
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      int high = Character.digit(hex.charAt(2 * i), 16);
+      int low = Character.digit(hex.charAt(2 * i + 1), 16);
+      if (high < 0 || low < 0) {
+        throw new NumberFormatException("Not hex " + hex);
+      }
+      bytes[i] = (byte) ((high << 4) | low);
+    }
+    return bytes;
+  }
+}
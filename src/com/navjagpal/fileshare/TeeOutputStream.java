@@ -0,0 +1,65 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * OutputStream that writes everything to a second stream as well, so data
+ * compressed for one response can be kept for the next.
+ */
+public class TeeOutputStream extends OutputStream {
+
+  private final OutputStream mOut;
+
+  private final OutputStream mCopy;
+
+  /**
+   * @param out Flushed and closed together with the stream.
+   * @param copy Flushed and closed together with the stream.
+   */
+  public TeeOutputStream(OutputStream out, OutputStream copy) {
+    mOut = out;
+    mCopy = copy;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    mOut.write(b);
+    mCopy.write(b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    mOut.write(b, off, len);
+    mCopy.write(b, off, len);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    mOut.flush();
+    mCopy.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      mOut.close();
+    } finally {
+      mCopy.close();
+    }
+  }
+}
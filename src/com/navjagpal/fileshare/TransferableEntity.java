@@ -0,0 +1,51 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import org.apache.http.HttpEntity;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * HttpEntity that can write its content straight to a channel, letting the
+ * kernel move file data to the socket. In selector mode the content is
+ * written a piece at a time to a non-blocking socket, whenever the client
+ * can take more.
+ */
+public interface TransferableEntity extends HttpEntity {
+
+  /**
+   * Writes the whole content to the channel. Must produce exactly the same
+   * bytes as {@link HttpEntity#writeTo}.
+   */
+  public void transferTo(WritableByteChannel target) throws IOException;
+
+  /**
+   * Does whatever work the content needs before it can be written without
+   * blocking, on the worker thread.
+   */
+  public void prepareTransfer() throws IOException;
+
+  /**
+   * Writes as much of the content as a non-blocking channel takes, starting
+   * at an offset into the content. Called on the selector thread, so it must
+   * only read data that is already in memory or on disk.
+   *
+   * @return The number of bytes written, possibly 0.
+   */
+  public long transferTo(long offset, WritableByteChannel target)
+      throws IOException;
+}
@@ -0,0 +1,539 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import android.os.StatFs;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Resumable uploads. A client creates a session for a file, sends chunks at
+ * any offset, possibly several at once, and finishes the session once every
+ * byte has arrived.
+ *
+ * Each chunk is received into a file of its own and only copied into the
+ * staging file once its length and checksum have been checked, so a damaged
+ * or cut off retransmission never overwrites bytes that already arrived.
+ * The ranges received so far are saved next to the staging file after every
+ * chunk, so an interrupted upload, even one interrupted by a restart of the
+ * phone, only needs the missing ranges to be sent again.
+ */
+public class UploadSessions {
+
+  private static final String TAG = "FileSharer UploadSessions";
+
+  /* Sessions nobody has touched for this long are deleted. */
+  private static final long SESSION_EXPIRY_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+  /* How often the staging directory is checked for expired sessions. */
+  private static final long EXPIRY_CHECK_MILLIS = 60 * 60 * 1000;
+
+  /* Uploads that may be in progress at once. */
+  private static final int MAX_SESSIONS = 16;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final String DATA_SUFFIX = ".part";
+  private static final String STATE_SUFFIX = ".state";
+  private static final String CHUNK_SUFFIX = ".chunk";
+
+  private static final String KEY_FOLDER = "folder";
+  private static final String KEY_NAME = "name";
+  private static final String KEY_SIZE = "size";
+  private static final String KEY_RECEIVED = "received";
+
+  private final File mStagingDirectory;
+
+  private final SecureRandom mRandom = new SecureRandom();
+
+  private final ConcurrentHashMap<String, Session> mSessions =
+      new ConcurrentHashMap<String, Session>();
+
+  private long mLastExpiryCheck;
+
+  /**
+   * @param stagingDirectory Where partial uploads are kept, created on
+   *     demand. Expired sessions in it are deleted.
+   */
+  public UploadSessions(File stagingDirectory) {
+    mStagingDirectory = stagingDirectory;
+    deleteExpired();
+  }
+
+  /**
+   * Starts a new upload, unless the file would not fit in the space left or
+   * too many uploads are already in progress.
+   *
+   * @param folderId Folder the file will be shared in.
+   * @param name Name of the file, without any directory.
+   * @param size Total size of the file in bytes.
+   * @return The session, or null if the upload was refused.
+   */
+  public Session create(String folderId, String name, long size)
+      throws IOException {
+    deleteExpiredLater();
+    if (!mStagingDirectory.isDirectory() && !mStagingDirectory.mkdirs()) {
+      throw new IOException("Could not create " + mStagingDirectory);
+    }
+    byte[] bytes = new byte[16];
+    mRandom.nextBytes(bytes);
+    StringBuilder id = new StringBuilder();
+    for (byte b : bytes) {
+      id.append(Character.forDigit((b >> 4) & 0xf, 16));
+      id.append(Character.forDigit(b & 0xf, 16));
+    }
+    Session session = new Session(id.toString(), folderId, name, size);
+    /* Sessions created at once must not all count the same free space. */
+    synchronized (this) {
+      if (countSessions() >= MAX_SESSIONS) {
+        Log.w(TAG, "Too many uploads in progress, refusing " + name);
+        return null;
+      }
+      if (size > getAvailableBytes()) {
+        Log.w(TAG, "No space for " + size + " bytes, refusing " + name);
+        return null;
+      }
+      RandomAccessFile data =
+          new RandomAccessFile(session.getDataFile(), "rw");
+      try {
+        data.setLength(size);
+      } finally {
+        data.close();
+      }
+      session.save();
+    }
+    mSessions.put(session.mId, session);
+    Log.i(TAG, "Created upload session " + session.mId + " for " + name);
+    return session;
+  }
+
+  /* Counts the sessions saved on disk, including ones not loaded yet. */
+  private int countSessions() {
+    File[] files = mStagingDirectory.listFiles();
+    int count = 0;
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().endsWith(STATE_SUFFIX)) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  private long getAvailableBytes() {
+    StatFs stat = new StatFs(mStagingDirectory.getPath());
+    return (long) stat.getAvailableBlocks() * stat.getBlockSize();
+  }
+
+  /**
+   * Returns a session, loading it from disk if the process was restarted
+   * since it was created.
+   *
+   * @return The session, or null if there is no such session.
+   */
+  public Session get(String id) {
+    if (!isValidId(id)) {
+      return null;
+    }
+    deleteExpiredLater();
+    Session session = mSessions.get(id);
+    if (session != null) {
+      return session;
+    }
+    session = load(id);
+    if (session == null) {
+      return null;
+    }
+    Session existing = mSessions.putIfAbsent(id, session);
+    return existing != null ? existing : session;
+  }
+
+  /* Deletes a session and its staged data. */
+  public void delete(Session session) {
+    mSessions.remove(session.mId);
+    session.getDataFile().delete();
+    session.getStateFile().delete();
+  }
+
+  /**
+   * Moves the data of a complete session into a directory and forgets the
+   * session. A file that is already there under the same name is kept, and
+   * the upload gets a numbered name instead.
+   *
+   * @return The file the upload was moved to, or null if the session was not
+   *     complete or the file could not be moved.
+   */
+  public File finish(Session session, File directory) {
+    File destination;
+    synchronized (session) {
+      if (!session.isComplete() || session.mActiveWrites > 0) {
+        return null;
+      }
+      destination = moveToFreeFile(session.getDataFile(), directory,
+          session.mName);
+      if (destination == null) {
+        return null;
+      }
+      session.mFinished = true;
+    }
+    mSessions.remove(session.mId);
+    session.getStateFile().delete();
+    return destination;
+  }
+
+  /**
+   * Moves a received file into a directory without replacing anything there:
+   * a shared file may be mapped or being sent, and must never change under
+   * its readers. The file gets a numbered name if its name is taken.
+   * Uploads finishing at once must not pick the same free name, so every
+   * upload goes through here.
+   *
+   * @return The file it was moved to, or null if it could not be moved.
+   */
+  public synchronized File moveToFreeFile(File file, File directory,
+      String name) {
+    File destination = getFreeFile(directory, name);
+    if (!file.renameTo(destination)) {
+      Log.e(TAG, "Could not move upload to " + destination);
+      return null;
+    }
+    return destination;
+  }
+
+  /* Returns name, or name-1, name-2... before the extension if it's taken. */
+  private static File getFreeFile(File directory, String name) {
+    File file = new File(directory, name);
+    int dot = name.lastIndexOf('.');
+    String base = dot > 0 ? name.substring(0, dot) : name;
+    String extension = dot > 0 ? name.substring(dot) : "";
+    for (int i = 1; file.exists(); i++) {
+      file = new File(directory, base + "-" + i + extension);
+    }
+    return file;
+  }
+
+  /* Reads the state a session saved, or returns null if there is none. */
+  private Session load(String id) {
+    File stateFile = new File(mStagingDirectory, id + STATE_SUFFIX);
+    if (!stateFile.isFile()) {
+      return null;
+    }
+    Properties state = new Properties();
+    try {
+      InputStream input = new FileInputStream(stateFile);
+      try {
+        state.load(input);
+      } finally {
+        input.close();
+      }
+      Session session = new Session(id,
+          state.getProperty(KEY_FOLDER), state.getProperty(KEY_NAME),
+          Long.parseLong(state.getProperty(KEY_SIZE)));
+      String received = state.getProperty(KEY_RECEIVED, "");
+      for (String range : received.split(",")) {
+        int dash = range.indexOf('-');
+        if (dash > 0) {
+          session.addRange(Long.parseLong(range.substring(0, dash)),
+              Long.parseLong(range.substring(dash + 1)) + 1);
+        }
+      }
+      return session;
+    } catch (IOException e) {
+      Log.e(TAG, "Could not load upload session " + id + " " + e.toString());
+    } catch (NumberFormatException e) {
+      Log.e(TAG, "Corrupt upload session " + id + " " + e.toString());
+    }
+    return null;
+  }
+
+  private static boolean isValidId(String id) {
+    if (id == null || id.length() != 32) {
+      return false;
+    }
+    for (int i = 0; i < id.length(); i++) {
+      if (Character.digit(id.charAt(i), 16) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /* Deletes expired sessions if that hasn't been done for a while. */
+  private void deleteExpiredLater() {
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      if (now - mLastExpiryCheck < EXPIRY_CHECK_MILLIS) {
+        return;
+      }
+      mLastExpiryCheck = now;
+    }
+    deleteExpired();
+  }
+
+  /**
+   * Deletes the files of sessions, and chunks left behind by dropped
+   * connections, that nobody has touched for a while. Sessions being
+   * written to keep their files fresh.
+   */
+  private void deleteExpired() {
+    File[] files = mStagingDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    long cutoff = System.currentTimeMillis() - SESSION_EXPIRY_MILLIS;
+    for (File file : files) {
+      if (file.lastModified() < cutoff) {
+        Log.i(TAG, "Deleting expired upload " + file.getName());
+        file.delete();
+        String name = file.getName();
+        if (name.endsWith(STATE_SUFFIX)) {
+          mSessions.remove(
+              name.substring(0, name.length() - STATE_SUFFIX.length()));
+        }
+      }
+    }
+  }
+
+  /**
+   * A file being uploaded. Chunks may be written concurrently, the ranges
+   * received are guarded by the session's monitor.
+   */
+  public class Session {
+    private final String mId;
+    private final String mFolderId;
+    private final String mName;
+    private final long mSize;
+
+    /* Disjoint, sorted [start, end) pairs of bytes received. */
+    private final List<long[]> mReceived = new ArrayList<long[]>();
+
+    private int mActiveWrites;
+
+    private boolean mFinished;
+
+    private Session(String id, String folderId, String name, long size) {
+      mId = id;
+      mFolderId = folderId;
+      mName = name;
+      mSize = size;
+    }
+
+    public String getId() {
+      return mId;
+    }
+
+    public String getFolderId() {
+      return mFolderId;
+    }
+
+    public String getName() {
+      return mName;
+    }
+
+    public long getSize() {
+      return mSize;
+    }
+
+    private File getDataFile() {
+      return new File(mStagingDirectory, mId + DATA_SUFFIX);
+    }
+
+    private File getStateFile() {
+      return new File(mStagingDirectory, mId + STATE_SUFFIX);
+    }
+
+    /**
+     * Receives a chunk into a file of its own, then copies it into place if
+     * it arrived complete and its checksum matches. The chunk is only
+     * recorded as received once it has been copied.
+     *
+     * @param offset Where the chunk starts in the file.
+     * @param length Length of the chunk, or -1 to read until the end of the
+     *     stream.
+     * @param expectedCrc CRC-32 of the chunk, or -1 if the client sent none.
+     * @return Whether the chunk was received intact.
+     */
+    public boolean writeChunk(long offset, long length, InputStream input,
+        long expectedCrc) throws IOException {
+      synchronized (this) {
+        if (mFinished) {
+          throw new IOException("Upload " + mId + " already finished");
+        }
+        mActiveWrites++;
+      }
+      File chunk = File.createTempFile(mId + "-", CHUNK_SUFFIX,
+          mStagingDirectory);
+      try {
+        long written = 0;
+        CRC32 crc = new CRC32();
+        OutputStream output = new FileOutputStream(chunk);
+        try {
+          byte[] buf = new byte[BUFFER_SIZE];
+          long limit = length < 0 ? mSize - offset : length;
+          while (written < limit) {
+            int len = input.read(buf, 0,
+                (int) Math.min(buf.length, limit - written));
+            if (len <= 0) {
+              break;
+            }
+            crc.update(buf, 0, len);
+            output.write(buf, 0, len);
+            written += len;
+          }
+        } finally {
+          output.close();
+        }
+        if ((length >= 0 && written != length)
+            || (expectedCrc >= 0 && crc.getValue() != expectedCrc)) {
+          Log.w(TAG, "Discarding damaged chunk at " + offset + " of " + mId);
+          return false;
+        }
+        if (written > 0) {
+          copyChunk(chunk, offset, written);
+        }
+        return true;
+      } finally {
+        chunk.delete();
+        synchronized (this) {
+          mActiveWrites--;
+        }
+      }
+    }
+
+    /**
+     * Copies a checked chunk into the staging file. Its range is not
+     * recorded as received while it is being overwritten, so a copy cut
+     * short, even by the process dying, only costs a retransmission.
+     */
+    private void copyChunk(File chunk, long offset, long length)
+        throws IOException {
+      synchronized (this) {
+        removeRange(offset, offset + length);
+        save();
+      }
+      FileChannel source = new FileInputStream(chunk).getChannel();
+      try {
+        FileChannel target =
+            new RandomAccessFile(getDataFile(), "rw").getChannel();
+        try {
+          long copied = 0;
+          while (copied < length) {
+            long count = target.transferFrom(source, offset + copied,
+                length - copied);
+            if (count <= 0) {
+              throw new IOException("Chunk of " + mId + " shrank");
+            }
+            copied += count;
+          }
+        } finally {
+          target.close();
+        }
+      } finally {
+        source.close();
+      }
+      synchronized (this) {
+        addRange(offset, offset + length);
+        save();
+      }
+    }
+
+    public synchronized boolean isComplete() {
+      return mSize == 0 || (mReceived.size() == 1
+          && mReceived.get(0)[0] == 0 && mReceived.get(0)[1] == mSize);
+    }
+
+    /**
+     * Returns the ranges received so far, like "0-1023,4096-8191", with
+     * inclusive ends as in a Range header.
+     */
+    public synchronized String getReceivedRanges() {
+      StringBuilder ranges = new StringBuilder();
+      for (long[] range : mReceived) {
+        if (ranges.length() > 0) {
+          ranges.append(',');
+        }
+        ranges.append(range[0]).append('-').append(range[1] - 1);
+      }
+      return ranges.toString();
+    }
+
+    /* Adds a range, merging it with the ranges it touches. */
+    private void addRange(long start, long end) {
+      int i = 0;
+      while (i < mReceived.size() && mReceived.get(i)[1] < start) {
+        i++;
+      }
+      while (i < mReceived.size() && mReceived.get(i)[0] <= end) {
+        long[] range = mReceived.remove(i);
+        start = Math.min(start, range[0]);
+        end = Math.max(end, range[1]);
+      }
+      mReceived.add(i, new long[] {start, end});
+    }
+
+    /* Removes a range, cutting the ranges it overlaps. */
+    private void removeRange(long start, long end) {
+      List<long[]> kept = new ArrayList<long[]>();
+      for (long[] range : mReceived) {
+        if (range[1] <= start || range[0] >= end) {
+          kept.add(range);
+          continue;
+        }
+        if (range[0] < start) {
+          kept.add(new long[] {range[0], start});
+        }
+        if (range[1] > end) {
+          kept.add(new long[] {end, range[1]});
+        }
+      }
+      mReceived.clear();
+      mReceived.addAll(kept);
+    }
+
+    /* Writes the session state, replacing the old state atomically. */
+    private synchronized void save() throws IOException {
+      Properties state = new Properties();
+      state.setProperty(KEY_FOLDER, mFolderId);
+      state.setProperty(KEY_NAME, mName);
+      state.setProperty(KEY_SIZE, Long.toString(mSize));
+      state.setProperty(KEY_RECEIVED, getReceivedRanges());
+      File temp = new File(mStagingDirectory, mId + STATE_SUFFIX + ".tmp");
+      OutputStream output = new FileOutputStream(temp);
+      try {
+        state.store(output, null);
+      } finally {
+        output.close();
+      }
+      if (!temp.renameTo(getStateFile())) {
+        throw new IOException("Could not save upload state of " + mId);
+      }
+    }
+  }
+}
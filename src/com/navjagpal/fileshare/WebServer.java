@@ -15,7 +15,10 @@
 package com.navjagpal.fileshare;
 
 import org.apache.commons.fileupload.MultipartStream;
+import org.apache.http.ConnectionClosedException;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
@@ -24,33 +27,48 @@ import org.apache.http.RequestLine;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.DefaultHttpServerConnection;
-import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.impl.cookie.DateUtils;
 import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
-import android.content.ContentValues;
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.provider.OpenableColumns;
 import android.util.Log;
 
@@ -66,7 +84,23 @@ public class WebServer {
 
   private SharedPreferences mSharedPreferences;
 
-  private SQLiteDatabase mCookiesDatabase;
+  /* Session modes, picked with FileSharingService.PREFS_SESSION_MODE. */
+  public static final String SESSIONS_SIGNED = "signed";
+  public static final String SESSIONS_STORED = "stored";
+
+  private SessionManager mSessionManager;
+
+  /* Logs everybody out when FileShare rotates the session key. */
+  private final SharedPreferences.OnSharedPreferenceChangeListener
+      mSessionKeyListener =
+          new SharedPreferences.OnSharedPreferenceChangeListener() {
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
+        String key) {
+      if (FileSharingService.PREFS_SESSION_KEY.equals(key)) {
+        mSessionManager.invalidateAll();
+      }
+    }
+  };
 
   public interface TransferStartedListener {
     public void started(Uri uri);
@@ -74,9 +108,82 @@ public class WebServer {
 
   private TransferStartedListener mTransferStartedListener;
 
+  private static final Pattern API_PATTERN =
+      Pattern.compile("/api/folders(?:/(\\d+)/files)?/?(?:\\?.*)?");
+
+  private static final Pattern CHANGES_PATTERN =
+      Pattern.compile("/api/changes/?(?:\\?.*)?");
+
+  /* Longest a request for changes is held waiting for one. */
+  private static final int MAX_CHANGES_WAIT_SECONDS = 60;
+
+  private static final int MAX_CHANGES_PER_RESPONSE = 1000;
+
+  /* Share of the workers that may be held by requests waiting for changes,
+   * so idle clients can't take them all. */
+  private static final int CHANGES_WAITERS_DIVISOR = 4;
+
+  /* Requests held waiting for changes, and how many may be. */
+  private final AtomicInteger mChangesWaiters = new AtomicInteger();
+  private final int mMaxChangesWaiters;
+
+  private static final String JSON_CONTENT_TYPE =
+      "application/json; charset=UTF-8";
+
+  /* Smaller bodies are sent as they are, compressing them gains nothing. */
+  private static final int MIN_ENCODED_LENGTH = 256;
+
   /* How long we allow session cookies to last. */
   private static final int COOKIE_EXPIRY_SECONDS = 3600;
 
+  /* How long clients are asked to wait when all workers are busy. */
+  private static final int RETRY_AFTER_SECONDS = 5;
+
+  private ConnectionExecutor mConnectionExecutor;
+
+  /* Set while running in selector mode. */
+  private SelectorServer mSelectorServer;
+
+  /* How long an idle keep-alive connection is kept open. */
+  private static final int KEEP_ALIVE_TIMEOUT_MILLIS = 15 * 1000;
+
+  /* Connections are closed after serving this many requests. */
+  private static final int MAX_REQUESTS_PER_CONNECTION = 100;
+
+  /* Keep-alive counters. */
+  private final AtomicLong mConnectionCount = new AtomicLong();
+  private final AtomicLong mRequestCount = new AtomicLong();
+  private final AtomicLong mReusedRequestCount = new AtomicLong();
+  private final AtomicLong mIdleTimeoutCount = new AtomicLong();
+
+  private static final String UPLOAD_DIRECTORY = "/sdcard/fileshare/uploads";
+
+  private static final int UPLOAD_BUFFER_SIZE = 256 * 1024;
+
+  /* Upload counters. */
+  private final AtomicLong mUploadCount = new AtomicLong();
+  private final AtomicLong mUploadedFileCount = new AtomicLong();
+  private final AtomicLong mUploadedBytes = new AtomicLong();
+  private final AtomicLong mUploadMillis = new AtomicLong();
+  private volatile long mLastUploadRate;
+
+  private final UploadSessions mUploadSessions;
+
+  /* Recently downloaded files, kept open or mapped. */
+  private final FileCache mFileCache;
+
+  /* Drops cached files whenever shared files are changed or removed. */
+  private final ContentObserver mFileObserver = new ContentObserver(null) {
+    @Override
+    public void onChange(boolean selfChange) {
+      mFileCache.clear();
+    }
+  };
+
+  /* Server modes, picked with FileSharingService.PREFS_SERVER_MODE. */
+  public static final String MODE_SELECTOR = "selector";
+  public static final String MODE_BLOCKING = "blocking";
+
   /* Start the webserver on specified port */
   public WebServer(Context context,
       SharedPreferences sharedPreferences, SQLiteDatabase cookiesDatabase,
@@ -87,8 +194,32 @@ public class WebServer {
     mServerSocketChannel.socket().bind(new InetSocketAddress(mPort));
     mContext = context;
     mSharedPreferences = sharedPreferences;
-    mCookiesDatabase = cookiesDatabase;
-    deleteOldCookies();
+    if (SESSIONS_STORED.equals(mSharedPreferences.getString(
+        FileSharingService.PREFS_SESSION_MODE, SESSIONS_SIGNED))) {
+      mSessionManager = new SessionStore(cookiesDatabase, mSharedPreferences,
+          COOKIE_EXPIRY_SECONDS);
+    } else {
+      mSessionManager = new SignedSessionManager(mSharedPreferences,
+          COOKIE_EXPIRY_SECONDS);
+    }
+    mSharedPreferences.registerOnSharedPreferenceChangeListener(
+        mSessionKeyListener);
+    int maxConnections = mSharedPreferences.getInt(
+        FileSharingService.PREFS_MAX_CONNECTIONS,
+        FileSharingService.DEFAULT_MAX_CONNECTIONS);
+    mMaxChangesWaiters = Math.max(maxConnections / CHANGES_WAITERS_DIVISOR,
+        1);
+    mConnectionExecutor = new ConnectionExecutor(maxConnections,
+        mSharedPreferences.getInt(FileSharingService.PREFS_CONNECTION_QUEUE,
+            FileSharingService.DEFAULT_CONNECTION_QUEUE),
+        RETRY_AFTER_SECONDS);
+    mUploadSessions = new UploadSessions(
+        new File(UPLOAD_DIRECTORY, ".staging"));
+    mFileCache = new FileCache(1024L * mSharedPreferences.getInt(
+        FileSharingService.PREFS_MAPPED_FILES_KB,
+        FileSharingService.DEFAULT_MAPPED_FILES_KB));
+    mContext.getContentResolver().registerContentObserver(
+        FileSharingProvider.Files.CONTENT_URI, true, mFileObserver);
   }
 
   /* Returns port we're using */
@@ -100,23 +231,79 @@ public class WebServer {
     mTransferStartedListener = listener;
   }
 
+  /* Returns a summary of the server counters, for diagnostics. */
+  public String getStatistics() {
+    return "connections: " + mConnectionExecutor.getStatistics()
+        + "\nkeep-alive: connections=" + mConnectionCount.get()
+        + " requests=" + mRequestCount.get()
+        + " reused=" + mReusedRequestCount.get()
+        + " idleTimeouts=" + mIdleTimeoutCount.get()
+        + "\nuploads: requests=" + mUploadCount.get()
+        + " files=" + mUploadedFileCount.get()
+        + " bytes=" + mUploadedBytes.get()
+        + " avgRate=" + mUploadedBytes.get() / Math.max(mUploadMillis.get(), 1)
+            * 1000 / 1024 + "KB/s"
+        + " lastRate=" + mLastUploadRate / 1024 + "KB/s"
+        + "\nfile cache: " + mFileCache.getStatistics();
+  }
+
   public void runWebServer() {
+    Log.i(TAG, "Running main webserver thread");
+    try {
+      String mode = mSharedPreferences.getString(
+          FileSharingService.PREFS_SERVER_MODE, MODE_SELECTOR);
+      if (MODE_SELECTOR.equals(mode)) {
+        try {
+          mSelectorServer = createSelectorServer();
+        } catch (IOException e) {
+          Log.e(TAG, "Selector unavailable, using blocking mode. "
+              + e.toString());
+        }
+        if (mSelectorServer != null) {
+          try {
+            mSelectorServer.run();
+          } catch (IOException e) {
+            Log.e(TAG, "Unexpected error, shutting down. " + e.toString());
+          }
+          return;
+        }
+      }
+      runBlockingServer();
+    } finally {
+      mConnectionExecutor.shutdown();
+      mSharedPreferences.unregisterOnSharedPreferenceChangeListener(
+          mSessionKeyListener);
+      mSessionManager.shutdown();
+      mContext.getContentResolver().unregisterContentObserver(mFileObserver);
+      mFileCache.clear();
+    }
+  }
+
+  private SelectorServer createSelectorServer() throws IOException {
+    return new SelectorServer(mServerSocketChannel, mConnectionExecutor,
+        new SelectorServer.ConnectionHandler() {
+          public void handleConnection(Socket socket, byte[] prefetched,
+              int requestCount) {
+            serveConnection(socket, prefetched, requestCount);
+          }
+        });
+  }
+
+  /* Accepts connections on this thread and hands each one to a worker. */
+  private void runBlockingServer() {
     while (true) {
-      Log.i(TAG, "Running main webserver thread");
       try {
-    	SocketChannel channel = mServerSocketChannel.accept();
+        SocketChannel channel = mServerSocketChannel.accept();
         final Socket socket = channel.socket();
         Log.d(TAG, "Socket accepted");
-        Thread t = new Thread() {
-          @Override
+        mConnectionExecutor.execute(socket, new Runnable() {
           public void run() {
-        	  handleRequest(socket);
+            serveConnection(socket, null, 0);
           }
-        };
-        t.start();
+        });
       } catch (ClosedByInterruptException e) {
-    	Log.i(TAG, "Received interrupt to shutdown.");
-    	return;
+        Log.i(TAG, "Received interrupt to shutdown.");
+        return;
       } catch (IOException e) {
         Log.e(TAG, "Unexpected error, shutting down. " + e.toString());
         return;
@@ -124,83 +311,319 @@ public class WebServer {
     }
   }
 
-  /* Handles a single request. */
-  public void handleRequest(Socket socket) {
+  /**
+   * Serves requests on a connection until it is closed. In selector mode a
+   * connection that goes idle, or only has a file body left to send, is
+   * handed back to the selector instead.
+   *
+   * @param socket The client socket.
+   * @param prefetched Request bytes already read off the socket, or null.
+   * @param requestCount Requests already served on this connection.
+   */
+  public void serveConnection(Socket socket, byte[] prefetched,
+      int requestCount) {
+    PrefetchedHttpServerConnection serverConnection =
+        new PrefetchedHttpServerConnection(prefetched);
+    boolean resumed = false;
     try {
-      DefaultHttpServerConnection serverConnection = new DefaultHttpServerConnection();
-      serverConnection.bind(socket, new BasicHttpParams());
-      HttpRequest request = serverConnection.receiveRequestHeader();
-      RequestLine requestLine = request.getRequestLine();
-
-      /* First make sure user is logged in if that is required. */
-      boolean loggedIn = false;
-      if (mSharedPreferences.getBoolean(FileSharingService.PREFS_REQUIRE_LOGIN,
-          false)) {
-        /* Does the user have a valid cookie? */
-        Header cookiesHeader = request.getFirstHeader("Cookie");
-        if (cookiesHeader != null) {
-          String cookies = cookiesHeader.getValue();
-          String cookie = cookies.substring(cookies.indexOf("id=")
-              + "id=".length());
-          loggedIn = isValidCookie(cookie);
-        }
-      } else {
-        loggedIn = true;
+      HttpParams params = new BasicHttpParams();
+      HttpConnectionParams.setSoTimeout(params, KEEP_ALIVE_TIMEOUT_MILLIS);
+      serverConnection.bind(socket, params);
+      if (requestCount == 0) {
+        mConnectionCount.incrementAndGet();
       }
+      boolean keepAlive = true;
+      while (keepAlive) {
+        HttpRequest request = serverConnection.receiveRequestHeader();
+        if (request instanceof HttpEntityEnclosingRequest) {
+          serverConnection.receiveRequestEntity(
+              (HttpEntityEnclosingRequest) request);
+        }
+        requestCount++;
+        mRequestCount.incrementAndGet();
+        if (requestCount > 1) {
+          mReusedRequestCount.incrementAndGet();
+        }
 
-      if (!loggedIn) {
-        /* Could be the result of the login form. */
-        if (requestLine.getUri().equals("/login")) {
-          handleLoginRequest(serverConnection, request, requestLine);
-        } else {
-          sendLoginForm(serverConnection, requestLine);
+        HttpResponse response = handleRequest(request);
+        encodeResponse(request, response);
+        keepAlive = requestCount < MAX_REQUESTS_PER_CONNECTION
+            && isKeepAliveRequested(request);
+        keepAlive = prepareResponse(request, response, keepAlive,
+            MAX_REQUESTS_PER_CONNECTION - requestCount);
+        if (handOffResponse(serverConnection, socket, request, response,
+            requestCount, keepAlive)) {
+          resumed = true;
+          return;
+        }
+        sendResponse(serverConnection, socket, response);
+
+        if (keepAlive) {
+          /* Whatever the handler left unread belongs to this request. */
+          consumeRequestEntity(request);
+          if (mSelectorServer != null && !serverConnection.hasBufferedInput()) {
+            /* Nothing pipelined, wait for the next request off-thread. */
+            mSelectorServer.resume(socket.getChannel(), requestCount,
+                KEEP_ALIVE_TIMEOUT_MILLIS);
+            resumed = true;
+            return;
+          }
         }
-      } else if (requestLine.getUri().equals("/")) {
-        Log.i(TAG, "Sending shared folder listing");
-        sendSharedFolderListing(serverConnection);
-      } else if (requestLine.getMethod().equals("GET")
-          && requestLine.getUri().startsWith("/folder")) {
-        Log.i(TAG, "Sending list of shared files");
-        sendSharedFilesList(serverConnection, requestLine);
-      } else if (requestLine.getUri().startsWith("/zip")) {
-        Log.i(TAG, "Sending zip file.");
-        sendFolderContent(serverConnection, requestLine);
-      } else if (requestLine.getUri().startsWith("/file")) {
-        Log.i(TAG, "Sending file content");
-        sendFileContent(serverConnection, requestLine);
-      } else if (requestLine.getMethod().equals("POST")) {
-        Log.i(TAG, "User is uploading file");
-        handleUploadRequest(serverConnection, request, requestLine);
-      } else if (requestLine.getUri().startsWith("/playlist")) {
-        Log.i(TAG, "User is requesting playlist");
-        sendPlaylist(serverConnection, requestLine);
-      } else {
-        Log.i(TAG, "No action for " + requestLine.getUri());
-        sendNotFound(serverConnection);
       }
-      serverConnection.flush();
-      serverConnection.close();
+    } catch (SocketTimeoutException e) {
+      mIdleTimeoutCount.incrementAndGet();
+      Log.d(TAG, "Closing idle connection");
+    } catch (ConnectionClosedException e) {
+      Log.d(TAG, "Client closed connection");
     } catch (IOException e) {
       Log.e(TAG, "Problem with socket " + e.toString());
     } catch (HttpException e) {
-      Log.e(TAG, "Problemw with HTTP server " + e.toString());
+      Log.e(TAG, "Problem with HTTP server " + e.toString());
+    } finally {
+      if (!resumed) {
+        close(serverConnection, socket);
+      }
+    }
+  }
+
+  /* Handles a single request and returns the response to send. */
+  private HttpResponse handleRequest(HttpRequest request) throws IOException,
+      HttpException {
+    RequestLine requestLine = request.getRequestLine();
+
+    /* First make sure user is logged in if that is required. */
+    boolean loggedIn = false;
+    if (mSharedPreferences.getBoolean(FileSharingService.PREFS_REQUIRE_LOGIN,
+        false)) {
+      /* Does the user have a valid cookie? */
+      String cookie = getSessionCookie(request);
+      loggedIn = cookie != null && mSessionManager.isValid(cookie);
+    } else {
+      loggedIn = true;
+    }
+
+    if (!loggedIn) {
+      /* Could be the result of the login form. */
+      if (requestLine.getUri().equals("/login")) {
+        return handleLoginRequest(request);
+      } else {
+        return getLoginFormResponse();
+      }
+    } else if (requestLine.getUri().equals("/")) {
+      Log.i(TAG, "Sending shared folder listing");
+      return getSharedFolderListingResponse(request);
+    } else if (requestLine.getMethod().equals("GET")
+        && requestLine.getUri().startsWith("/folder")) {
+      Log.i(TAG, "Sending list of shared files");
+      return getSharedFilesListResponse(request);
+    } else if (requestLine.getUri().startsWith("/zip")) {
+      Log.i(TAG, "Sending zip file.");
+      return getFolderContentResponse(request);
+    } else if (requestLine.getUri().startsWith("/file")) {
+      Log.i(TAG, "Sending file content");
+      return getFileContentResponse(request);
+    } else if (requestLine.getMethod().equals("GET")
+        && requestLine.getUri().startsWith("/api/")) {
+      return handleApiRequest(request);
+    } else if (requestLine.getUri().startsWith("/upload/")) {
+      return handleResumableUploadRequest(request);
+    } else if (requestLine.getMethod().equals("POST")
+        && request instanceof HttpEntityEnclosingRequest) {
+      Log.i(TAG, "User is uploading file");
+      return handleUploadRequest((HttpEntityEnclosingRequest) request);
+    } else if (requestLine.getUri().startsWith("/playlist")) {
+      Log.i(TAG, "User is requesting playlist");
+      return getPlaylistResponse(requestLine);
+    } else {
+      Log.i(TAG, "No action for " + requestLine.getUri());
+      return getNotFoundResponse();
+    }
+  }
+
+  /**
+   * Compresses generated text, like listings and playlists, for clients
+   * that accept it. Responses with a strong entity tag name the exact bytes
+   * sent; file downloads pick their own coding in addFileEntity.
+   */
+  private void encodeResponse(HttpRequest request, HttpResponse response) {
+    HttpEntity entity = response.getEntity();
+    if (entity == null || response.getStatusLine().getStatusCode() != 200
+        || response.containsHeader("Content-Encoding")
+        || request.containsHeader("Range")) {
+      return;
+    }
+    Header entityTag = response.getFirstHeader("ETag");
+    if (entityTag != null && !entityTag.getValue().startsWith("W/")) {
+      return;
+    }
+    Header contentType = response.getFirstHeader("Content-Type");
+    if (contentType == null) {
+      contentType = entity.getContentType();
+    }
+    if (contentType == null
+        || !ContentEncoding.isCompressible(contentType.getValue())) {
+      return;
+    }
+    if (!response.containsHeader("Vary")) {
+      response.addHeader("Vary", "Accept-Encoding");
+    }
+    long length = entity.getContentLength();
+    if (length >= 0 && length < MIN_ENCODED_LENGTH) {
+      return;
+    }
+    String encoding = ContentEncoding.select(request);
+    if (encoding != null) {
+      response.addHeader("Content-Encoding", encoding);
+      response.setEntity(new EncodedEntity(entity, encoding));
+    }
+  }
+
+  /* HTTP/1.1 connections persist unless the client says otherwise. */
+  private boolean isKeepAliveRequested(HttpRequest request) {
+    Header connection = request.getFirstHeader("Connection");
+    if (connection != null) {
+      String value = connection.getValue().toLowerCase();
+      if (value.indexOf("close") >= 0) {
+        return false;
+      } else if (value.indexOf("keep-alive") >= 0) {
+        return true;
+      }
+    }
+    return !request.getRequestLine().getProtocolVersion().lessEquals(
+        HttpVersion.HTTP_1_0);
+  }
+
+  /**
+   * Adds the framing and connection headers to a response.
+   *
+   * @return Whether the connection can be kept open after this response.
+   */
+  private boolean prepareResponse(HttpRequest request, HttpResponse response,
+      boolean keepAlive, int remainingRequests) {
+    HttpEntity entity = response.getEntity();
+    int status = response.getStatusLine().getStatusCode();
+    if (status == 304) {
+      /* Not Modified never has a body. */
+    } else if (entity == null) {
+      response.setHeader("Content-Length", "0");
+    } else if (entity.getContentLength() >= 0) {
+      response.setHeader("Content-Length",
+          Long.toString(entity.getContentLength()));
+    } else if (entity.isChunked() && !request.getRequestLine()
+        .getProtocolVersion().lessEquals(HttpVersion.HTTP_1_0)) {
+      response.setHeader("Transfer-Encoding", "chunked");
+    } else {
+      /* The end of the body is signalled by closing the connection. */
+      keepAlive = false;
+    }
+    if (keepAlive) {
+      response.setHeader("Connection", "keep-alive");
+      response.setHeader("Keep-Alive", "timeout="
+          + KEEP_ALIVE_TIMEOUT_MILLIS / 1000 + ", max=" + remainingRequests);
+    } else {
+      response.setHeader("Connection", "close");
+    }
+    return keepAlive;
+  }
+
+  /**
+   * Writes a response. File bodies go from the file channel straight to the
+   * socket channel; everything else is streamed through the connection.
+   */
+  private void sendResponse(DefaultHttpServerConnection serverConnection,
+      Socket socket, HttpResponse response) throws IOException,
+      HttpException {
+    HttpEntity entity = response.getEntity();
+    try {
+      serverConnection.sendResponseHeader(response);
+      if (entity instanceof TransferableEntity && socket.getChannel() != null) {
+        serverConnection.flush();
+        ((TransferableEntity) entity).transferTo(socket.getChannel());
+      } else {
+        serverConnection.sendResponseEntity(response);
+        serverConnection.flush();
+      }
+    } finally {
+      if (entity != null) {
+        entity.consumeContent();
+      }
     }
   }
 
-  private void handleLoginRequest(DefaultHttpServerConnection serverConnection,
-      HttpRequest request, RequestLine requestLine) throws HttpException,
-      IOException {
+  /**
+   * In selector mode, sends the head of a response with a file body and
+   * leaves the body to the selector, which writes it as the client takes it
+   * without holding this worker. Not done while pipelined requests wait.
+   *
+   * @return Whether the selector now owns the connection.
+   */
+  private boolean handOffResponse(
+      PrefetchedHttpServerConnection serverConnection, Socket socket,
+      HttpRequest request, HttpResponse response, int requestCount,
+      boolean keepAlive) throws IOException, HttpException {
+    HttpEntity entity = response.getEntity();
+    if (mSelectorServer == null || !(entity instanceof TransferableEntity)
+        || socket.getChannel() == null) {
+      return false;
+    }
+    if (keepAlive) {
+      /* The selector only reads request heads. */
+      consumeRequestEntity(request);
+    }
+    if (serverConnection.hasBufferedInput()) {
+      return false;
+    }
+    TransferableEntity body = (TransferableEntity) entity;
+    boolean handedOff = false;
+    try {
+      body.prepareTransfer();
+      serverConnection.sendResponseHeader(response);
+      serverConnection.flush();
+      mSelectorServer.send(socket.getChannel(), body, requestCount, keepAlive,
+          KEEP_ALIVE_TIMEOUT_MILLIS);
+      handedOff = true;
+    } finally {
+      if (!handedOff) {
+        entity.consumeContent();
+      }
+    }
+    return true;
+  }
 
-    BasicHttpEntityEnclosingRequest enclosingRequest = new BasicHttpEntityEnclosingRequest(
-        request.getRequestLine());
-    serverConnection.receiveRequestEntity(enclosingRequest);
+  private void consumeRequestEntity(HttpRequest request) throws IOException {
+    if (request instanceof HttpEntityEnclosingRequest) {
+      HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+      if (entity != null) {
+        entity.consumeContent();
+      }
+    }
+  }
 
-    InputStream input = enclosingRequest.getEntity().getContent();
-    InputStreamReader reader = new InputStreamReader(input);
+  private void close(DefaultHttpServerConnection serverConnection,
+      Socket socket) {
+    try {
+      serverConnection.close();
+    } catch (IOException e) {
+      Log.d(TAG, "Problem closing connection " + e.toString());
+    }
+    try {
+      socket.close();
+    } catch (IOException e) {
+      Log.d(TAG, "Problem closing socket " + e.toString());
+    }
+  }
 
+  private HttpResponse handleLoginRequest(HttpRequest request)
+      throws IOException {
     StringBuffer form = new StringBuffer();
-    while (reader.ready()) {
-      form.append((char) reader.read());
+    if (request instanceof HttpEntityEnclosingRequest) {
+      InputStream input =
+          ((HttpEntityEnclosingRequest) request).getEntity().getContent();
+      InputStreamReader reader = new InputStreamReader(input);
+      int c;
+      while ((c = reader.read()) != -1) {
+        form.append((char) c);
+      }
     }
     String password = form.substring(form.indexOf("=") + 1);
     if (password.equals(mSharedPreferences.getString(
@@ -208,111 +631,295 @@ public class WebServer {
       HttpResponse response = new BasicHttpResponse(new HttpVersion(1, 1), 302,
           "Found");
       response.addHeader("Location", "/");
-      response.addHeader("Set-Cookie", "id=" + createCookie());
+      response.addHeader("Set-Cookie", "id=" + mSessionManager.create()
+          + "; HttpOnly");
       response.setEntity(new StringEntity(getHTMLHeader() + "Success!"
           + getHTMLFooter()));
-      serverConnection.sendResponseHeader(response);
-      serverConnection.sendResponseEntity(response);
+      return response;
     } else {
       HttpResponse response = new BasicHttpResponse(new HttpVersion(1, 1), 401,
           "Unauthorized");
       response.setEntity(new StringEntity(getHTMLHeader()
           + "<p>Login failed.</p>" + getLoginForm() + getHTMLFooter()));
-      serverConnection.sendResponseHeader(response);
-      serverConnection.sendResponseEntity(response);
+      return response;
     }
   }
 
-  private String createCookie() {
-    Random r = new Random();
-    String value = Long.toString(Math.abs(r.nextLong()), 36);
-    ContentValues values = new ContentValues();
-    values.put("name", "id");
-    values.put("value", value);
-    values.put("expiry", (int) System.currentTimeMillis() / 1000
-        + COOKIE_EXPIRY_SECONDS);
-    mCookiesDatabase.insert("cookies", "name", values);
-    return value;
-  }
-
-  private boolean isValidCookie(String cookie) {
-    Cursor cursor = mCookiesDatabase.query("cookies", new String[] { "value" },
-        "name = ? and value = ? and expiry > ?", new String[] { "id", cookie,
-            "" + (int) System.currentTimeMillis() / 1000 }, null, null, null);
-    boolean isValid = cursor.getCount() > 0;
-    cursor.close();
-    return isValid;
-  }
-
-  private void deleteOldCookies() {
-    mCookiesDatabase.delete("cookies", "expiry < ?", new String[] { ""
-        + (int) System.currentTimeMillis() / 1000 });
+  /* Returns the value of the session cookie, or null if there is none. */
+  private String getSessionCookie(HttpRequest request) {
+    for (Header header : request.getHeaders("Cookie")) {
+      StringTokenizer cookies = new StringTokenizer(header.getValue(), ";");
+      while (cookies.hasMoreTokens()) {
+        String cookie = cookies.nextToken().trim();
+        if (cookie.startsWith("id=")) {
+          return cookie.substring("id=".length());
+        }
+      }
+    }
+    return null;
   }
 
-  private void sendNotFound(DefaultHttpServerConnection serverConnection)
-      throws UnsupportedEncodingException, HttpException, IOException {
+  private HttpResponse getNotFoundResponse()
+      throws UnsupportedEncodingException {
     HttpResponse response = new BasicHttpResponse(new HttpVersion(1, 1), 404,
         "NOT FOUND");
     response.setEntity(new StringEntity("NOT FOUND"));
-    serverConnection.sendResponseHeader(response);
-    serverConnection.sendResponseEntity(response);
+    return response;
   }
 
-  private void handleUploadRequest(
-      DefaultHttpServerConnection serverConnection, HttpRequest request,
-      RequestLine requestLine) throws IOException, HttpException,
-      UnsupportedEncodingException {
+  private HttpResponse handleUploadRequest(HttpEntityEnclosingRequest request)
+      throws IOException, HttpException {
     HttpResponse response = new BasicHttpResponse(new HttpVersion(1, 1), 200,
         "OK");
-    String folderId = getFolderId(requestLine.getUri());
-    processUpload(folderId, request, serverConnection);
-    String header = getHTMLHeader();
-    String form = getUploadForm(folderId);
-    String footer = getHTMLFooter();
-    String listing = getFileListing(Uri.withAppendedPath(
-        FileSharingProvider.Folders.CONTENT_URI, folderId));
-    response.setEntity(new StringEntity(header + listing + form + footer));
-    serverConnection.sendResponseHeader(response);
-    serverConnection.sendResponseEntity(response);
-  }
-
-  private void sendFileContent(DefaultHttpServerConnection serverConnection,
-      RequestLine requestLine) throws IOException, HttpException {
+    long folderId = getSharedFolderId(
+        getFolderId(request.getRequestLine().getUri()));
+    if (folderId < 0) {
+      return getNotFoundResponse();
+    }
+    processUpload(Long.toString(folderId), request);
+    response.setEntity(getFileListingEntity(folderId, ListingPage.first()));
+    return response;
+  }
+
+  /**
+   * Resumable uploads, for clients that send large files in chunks:
+   *
+   *   POST   /upload/folder/{folder}?name=...&size=...  starts an upload
+   *   PUT    /upload/{upload}?offset=...                  sends a chunk
+   *   GET    /upload/{upload}                             lists received bytes
+   *   POST   /upload/{upload}/finish                      shares the file
+   *   DELETE /upload/{upload}                             abandons the upload
+   *
+   * Chunks may be sent in parallel and in any order. A chunk can carry its
+   * CRC-32 in hex in an X-Chunk-CRC32 header, damaged chunks are rejected
+   * with a 400 and have to be sent again.
+   */
+  private HttpResponse handleResumableUploadRequest(HttpRequest request)
+      throws IOException {
+    if (!mSharedPreferences.getBoolean(FileSharingService.PREFS_ALLOW_UPLOADS,
+        false)) {
+      return getTextResponse(403, "Forbidden", "Uploads are disabled.");
+    }
+    String method = request.getRequestLine().getMethod();
+    Uri uri = Uri.parse(request.getRequestLine().getUri());
+    List<String> segments = uri.getPathSegments();
+
+    if (segments.size() == 3 && segments.get(1).equals("folder")) {
+      if (!method.equals("POST")) {
+        return getTextResponse(405, "Method Not Allowed", "Use POST.");
+      }
+      return createUploadSession(segments.get(2), uri);
+    }
+    UploadSessions.Session session = segments.size() >= 2
+        ? mUploadSessions.get(segments.get(1)) : null;
+    if (session == null) {
+      return getNotFoundResponse();
+    }
+    if (segments.size() == 3 && segments.get(2).equals("finish")
+        && method.equals("POST")) {
+      return finishUploadSession(session);
+    } else if (segments.size() != 2) {
+      return getNotFoundResponse();
+    } else if (method.equals("PUT")) {
+      return receiveUploadChunk(session, uri, request);
+    } else if (method.equals("DELETE")) {
+      mUploadSessions.delete(session);
+      return getTextResponse(200, "OK", "Upload abandoned.");
+    } else {
+      return getUploadStatusResponse(200, "OK", session);
+    }
+  }
+
+  private HttpResponse createUploadSession(String folderId, Uri uri)
+      throws IOException {
+    String name = uri.getQueryParameter("name");
+    if (name != null) {
+      name = name.substring(Math.max(name.lastIndexOf('/'),
+          name.lastIndexOf('\\')) + 1);
+    }
+    long size;
+    try {
+      size = Long.parseLong(uri.getQueryParameter("size"));
+    } catch (NumberFormatException e) {
+      size = -1;
+    }
+    if (name == null || name.length() == 0 || size < 0) {
+      return getTextResponse(400, "Bad Request",
+          "A file name and size are required.");
+    }
+    long sharedFolderId = getSharedFolderId(folderId);
+    if (sharedFolderId < 0) {
+      return getNotFoundResponse();
+    }
+    UploadSessions.Session session = mUploadSessions.create(
+        Long.toString(sharedFolderId), name, size);
+    if (session == null) {
+      return getTextResponse(507, "Insufficient Storage",
+          "Not enough free space, or too many uploads in progress.");
+    }
+    HttpResponse response = getUploadStatusResponse(201, "Created", session);
+    response.addHeader("Location", "/upload/" + session.getId());
+    return response;
+  }
+
+  private HttpResponse receiveUploadChunk(UploadSessions.Session session,
+      Uri uri, HttpRequest request) throws IOException {
+    if (!(request instanceof HttpEntityEnclosingRequest)
+        || ((HttpEntityEnclosingRequest) request).getEntity() == null) {
+      return getTextResponse(400, "Bad Request", "Chunk has no body.");
+    }
+    HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+    long offset;
+    long crc = -1;
+    try {
+      offset = Long.parseLong(uri.getQueryParameter("offset"));
+      Header crcHeader = request.getFirstHeader("X-Chunk-CRC32");
+      if (crcHeader != null) {
+        crc = Long.parseLong(crcHeader.getValue().trim(), 16);
+      }
+    } catch (NumberFormatException e) {
+      return getTextResponse(400, "Bad Request",
+          "An offset and a valid checksum are required.");
+    }
+    long length = entity.getContentLength();
+    if (offset < 0 || offset > session.getSize()
+        || (length >= 0 && offset + length > session.getSize())) {
+      return getUploadStatusResponse(416, "Requested Range Not Satisfiable",
+          session);
+    }
+    InputStream input = entity.getContent();
+    if (!session.writeChunk(offset, length, input, crc)) {
+      return getUploadStatusResponse(400, "Bad Request", session);
+    }
+    return getUploadStatusResponse(200, "OK", session);
+  }
+
+  private HttpResponse finishUploadSession(UploadSessions.Session session)
+      throws IOException {
+    File uploadDirectory = new File(UPLOAD_DIRECTORY);
+    if (!uploadDirectory.exists()) {
+      uploadDirectory.mkdirs();
+    }
+    File uploadFile = mUploadSessions.finish(session, uploadDirectory);
+    if (uploadFile == null) {
+      return getUploadStatusResponse(409, "Conflict", session);
+    }
+    List<Uri> fileUris = new ArrayList<Uri>();
+    fileUris.add(Uri.withAppendedPath(FileProvider.CONTENT_URI,
+        uploadFile.getAbsolutePath()));
+    FileSharingProvider.addFilesToFolder(mContext.getContentResolver(),
+        fileUris, Uri.withAppendedPath(FileSharingProvider.Folders.CONTENT_URI,
+            session.getFolderId()));
+    mUploadCount.incrementAndGet();
+    mUploadedFileCount.incrementAndGet();
+    mUploadedBytes.addAndGet(session.getSize());
+    Log.i(TAG, "Finished resumable upload of " + uploadFile);
+    return getTextResponse(201, "Created", "Shared " + uploadFile.getName());
+  }
+
+  /* Describes an upload, so clients know which ranges are still missing. */
+  private HttpResponse getUploadStatusResponse(int status, String reason,
+      UploadSessions.Session session) throws UnsupportedEncodingException {
+    String ranges = session.getReceivedRanges();
+    HttpResponse response = getTextResponse(status, reason,
+        "id=" + session.getId() + "\nsize=" + session.getSize()
+        + "\nreceived=" + ranges + "\ncomplete=" + session.isComplete()
+        + "\n");
+    response.addHeader("X-Received-Ranges", ranges);
+    return response;
+  }
+
+  private HttpResponse getTextResponse(int status, String reason, String body)
+      throws UnsupportedEncodingException {
+    HttpResponse response = new BasicHttpResponse(new HttpVersion(1, 1),
+        status, reason);
+    response.addHeader("Content-Type", "text/plain");
+    response.setEntity(new StringEntity(body));
+    return response;
+  }
+
+  private HttpResponse getFileContentResponse(HttpRequest request)
+      throws IOException {
     HttpResponse response = new BasicHttpResponse(new HttpVersion(1, 1), 200,
         "OK");
-    String fileId = getFileId(requestLine.getUri());
-    addFileEntity(Uri.withAppendedPath(FileSharingProvider.Files.CONTENT_URI,
-        fileId), response);
-    serverConnection.sendResponseHeader(response);
-    serverConnection.sendResponseEntity(response);
+    long fileId = parseId(getFileId(request.getRequestLine().getUri()));
+    if (fileId < 0) {
+      return getNotFoundResponse();
+    }
+    try {
+      addFileEntity(fileId, request, response);
+    } catch (FileNotFoundException e) {
+      Log.w(TAG, "Shared file not found " + e.toString());
+      return getNotFoundResponse();
+    }
+    return response;
   }
   
   /**
-   * Sends a ZIP file containing all files from the shared folder.
+   * Returns a ZIP file containing all files from the shared folder.
    * 
-   * @param serverConnection
-   * @param requestLine
-   * @throws IOException
-   * @throws HttpException
+   * @param request
    */
-  private void sendFolderContent(DefaultHttpServerConnection serverConnection,
-      RequestLine requestLine) throws IOException, HttpException {
+  private HttpResponse getFolderContentResponse(HttpRequest request)
+      throws IOException {
     HttpResponse response = new BasicHttpResponse(new HttpVersion(1, 1), 200,
         "OK");
-    String folderId = getFolderId(requestLine.getUri());
-    addFolderZipEntity(folderId, response);
-    serverConnection.sendResponseHeader(response);
-    serverConnection.sendResponseEntity(response);
+    String folderId = getFolderId(request.getRequestLine().getUri());
+    if (folderId == null) {
+      return getNotFoundResponse();
+    }
+    addFolderZipEntity(folderId, request, response);
+    return response;
   }
   
-  private void addFolderZipEntity(String folderId, HttpResponse response) {
-    response.addHeader("Content-Type", "application/zip");
-    response.setEntity(new StreamingZipEntity(
-        mContext.getContentResolver(), folderId));
+  /**
+   * Builds the archive up front so its length is known, which lets clients
+   * show progress and resume with a single range. The archive is tagged
+   * from the files it contains, so If-Range and If-None-Match are answered
+   * before anything is read.
+   */
+  private void addFolderZipEntity(String folderId, HttpRequest request,
+      HttpResponse response) throws IOException {
+    ZipArchive archive = ZipArchive.create(mContext.getContentResolver(),
+        folderId, mContext.getCacheDir());
+    String entityTag = archive.getEntityTag();
+    if (ConditionalRequests.isNotModified(request, entityTag, 0)) {
+      setNotModified(response, entityTag, 0);
+      return;
+    }
+    archive.prepare();
+    long length = archive.getLength();
+    response.addHeader("Accept-Ranges", "bytes");
+    addValidators(response, entityTag, 0);
+
+    List<ByteRange> ranges = null;
+    Header rangeHeader = request.getFirstHeader("Range");
+    if (rangeHeader != null && ConditionalRequests.isRangeApplicable(request,
+        entityTag, 0)) {
+      ranges = ByteRange.parse(rangeHeader.getValue(), length);
+    }
+    if (ranges == null || ranges.size() > 1) {
+      /* Nobody asks for several ranges of an archive, send all of it. */
+      response.addHeader("Content-Type", "application/zip");
+      response.setEntity(new ZipArchiveEntity(archive, 0, length));
+    } else if (ranges.isEmpty()) {
+      archive.release();
+      response.setStatusLine(response.getProtocolVersion(), 416,
+          "Requested Range Not Satisfiable");
+      response.addHeader("Content-Range", "bytes */" + length);
+    } else {
+      ByteRange range = ranges.get(0);
+      response.setStatusLine(response.getProtocolVersion(), 206,
+          "Partial Content");
+      response.addHeader("Content-Type", "application/zip");
+      response.addHeader("Content-Range", range.toContentRange(length));
+      response.setEntity(new ZipArchiveEntity(archive, range.getStart(),
+          range.getLength()));
+    }
   }
   
-  private void sendPlaylist(DefaultHttpServerConnection serverConnection,
-      RequestLine requestLine) throws IOException, HttpException {
+  private HttpResponse getPlaylistResponse(RequestLine requestLine)
+      throws UnsupportedEncodingException {
     HttpResponse response = new BasicHttpResponse(new HttpVersion(1, 1), 200,
     "OK");
     
@@ -333,96 +940,439 @@ public class WebServer {
     }
     c.close();
     response.addHeader("Content-Type", "audio/x-mpegurl");
-    response.addHeader("Content-Length", "" + playlist.length());
     response.setEntity(new StringEntity(playlist));
-    serverConnection.sendResponseHeader(response);
-    serverConnection.sendResponseEntity(response);
+    return response;
+  }
+
+  private HttpResponse getSharedFilesListResponse(HttpRequest request)
+      throws UnsupportedEncodingException {
+    long folderId = getSharedFolderId(
+        getFolderId(request.getRequestLine().getUri()));
+    if (folderId < 0) {
+      return getNotFoundResponse();
+    }
+    HttpResponse response = new BasicHttpResponse(new HttpVersion(1, 1), 200,
+        "OK");
+    /* The page also depends on whether the upload form is shown. */
+    String entityTag = ConditionalRequests.getWeakEntityTag(
+        FileSharingProvider.getVersionTag() + "-" + mSharedPreferences
+            .getBoolean(FileSharingService.PREFS_ALLOW_UPLOADS, false));
+    if (ConditionalRequests.isNotModified(request, entityTag, 0)) {
+      setNotModified(response, entityTag, 0);
+      return response;
+    }
+    addListingValidators(response, entityTag);
+    response.setEntity(getFileListingEntity(folderId,
+        ListingPage.parse(request.getRequestLine().getUri())));
+    return response;
+  }
+
+  /**
+   * Read-only JSON API for scripts that mirror shares:
+   *
+   *   GET /api/folders              {"folders": [{"id", "name"}, ...]}
+   *   GET /api/folders/{id}/files   {"files": [{"id", "name", "size",
+   *                                 "mtime", "content_type"}, ...],
+   *                                 "next": uri of the next page or null}
+   *   GET /api/changes?since=N      see {@link #getChangesResponse}
+   *
+   * Files take the paging and sort parameters of {@link ListingPage}. Both
+   * are streamed from the cursor and carry the provider's version as a weak
+   * ETag.
+   */
+  private HttpResponse handleApiRequest(HttpRequest request)
+      throws UnsupportedEncodingException {
+    if (CHANGES_PATTERN.matcher(request.getRequestLine().getUri()).matches()) {
+      return getChangesResponse(request);
+    }
+    Matcher m = API_PATTERN.matcher(request.getRequestLine().getUri());
+    if (!m.matches()) {
+      return getNotFoundResponse();
+    }
+    final long folderId = m.group(1) != null ? getSharedFolderId(m.group(1))
+        : -1;
+    if (m.group(1) != null && folderId < 0) {
+      return getNotFoundResponse();
+    }
+    HttpResponse response = new BasicHttpResponse(new HttpVersion(1, 1), 200,
+        "OK");
+    String entityTag = ConditionalRequests.getWeakEntityTag(
+        FileSharingProvider.getVersionTag());
+    if (ConditionalRequests.isNotModified(request, entityTag, 0)) {
+      setNotModified(response, entityTag, 0);
+      return response;
+    }
+    addListingValidators(response, entityTag);
+    response.addHeader("Content-Type", JSON_CONTENT_TYPE);
+    if (folderId < 0) {
+      response.setEntity(new ListingEntity(JSON_CONTENT_TYPE) {
+        @Override
+        protected void render(ListingWriter out) throws IOException {
+          writeFoldersJson(out);
+        }
+      });
+    } else {
+      final ListingPage page =
+          ListingPage.parse(request.getRequestLine().getUri());
+      response.setEntity(new ListingEntity(JSON_CONTENT_TYPE) {
+        @Override
+        protected void render(ListingWriter out) throws IOException {
+          writeFilesJson(out, folderId, page);
+        }
+      });
+    }
+    return response;
   }
 
-  private void sendSharedFilesList(
-      DefaultHttpServerConnection serverConnection, RequestLine requestLine)
-      throws UnsupportedEncodingException, HttpException, IOException {
+  /**
+   * Changes to folders and files after sequence number since, oldest first:
+   *
+   *   {"changes": [{"seq", "type", "op", "id", "folder_id"}, ...],
+   *    "last": seq to ask from next time, "more": whether to ask right away,
+   *    "reset": whether changes were lost and the client has to list again}
+   *
+   * Without since, no changes are returned and last is the latest sequence
+   * number, to be taken before listing. With wait=S and nothing new, the
+   * request is held for up to S seconds until something changes, so idle
+   * clients cost one request a minute. Each held request ties up a worker,
+   * so only a quarter of them are held at once; past that the request is
+   * answered right away with a Retry-After header saying when to ask again.
+   */
+  private HttpResponse getChangesResponse(HttpRequest request)
+      throws UnsupportedEncodingException {
+    Uri uri = Uri.parse(request.getRequestLine().getUri());
+    long since = -1;
+    int waitSeconds = 0;
+    try {
+      String value = uri.getQueryParameter("since");
+      if (value != null) {
+        since = Long.parseLong(value);
+      }
+      value = uri.getQueryParameter("wait");
+      if (value != null) {
+        waitSeconds = Math.min(Integer.parseInt(value),
+            MAX_CHANGES_WAIT_SECONDS);
+      }
+    } catch (NumberFormatException e) {
+      return getTextResponse(400, "Bad Request", "Bad since or wait.");
+    }
+
+    /* Read the version first, so a change made while we look is not
+     * missed by the wait. */
+    long version = FileSharingProvider.getVersion();
+    long[] bounds = getChangeBounds();
+    boolean turnedAway = false;
+    if (since >= 0 && since == bounds[1] && waitSeconds > 0) {
+      try {
+        if (mChangesWaiters.incrementAndGet() > mMaxChangesWaiters) {
+          turnedAway = true;
+        } else if (FileSharingProvider.awaitChange(version,
+            waitSeconds * 1000L)) {
+          bounds = getChangeBounds();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        mChangesWaiters.decrementAndGet();
+      }
+    }
+
     HttpResponse response = new BasicHttpResponse(new HttpVersion(1, 1), 200,
         "OK");
-    String folderId = getFolderId(requestLine.getUri());
-    String header = getHTMLHeader();
-    String form = getUploadForm(folderId);
-    String footer = getHTMLFooter();
-    String listing = getFileListing(Uri.withAppendedPath(
-        FileSharingProvider.Folders.CONTENT_URI, folderId));
-    response.setEntity(new StringEntity(header + listing + form + footer));
-    serverConnection.sendResponseHeader(response);
-    serverConnection.sendResponseEntity(response);
-  }
-
-  private void sendLoginForm(DefaultHttpServerConnection serverConnection,
-      RequestLine requestLine) throws UnsupportedEncodingException,
-      HttpException, IOException {
+    response.addHeader("Cache-Control", "no-cache");
+    if (turnedAway) {
+      response.addHeader("Retry-After", Integer.toString(waitSeconds));
+    }
+    response.addHeader("Content-Type", JSON_CONTENT_TYPE);
+    /* Changes between since and the oldest one kept were dropped, or the
+     * database is not the one the client synced with. */
+    boolean reset = since >= 0
+        && (since > bounds[1] || (bounds[0] > 0 && since < bounds[0] - 1));
+    if (since < 0 || reset) {
+      response.setEntity(new StringEntity("{\"changes\":[],\"last\":"
+          + bounds[1] + ",\"more\":false,\"reset\":" + reset + "}"));
+      return response;
+    }
+    final long first = since;
+    response.setEntity(new ListingEntity(JSON_CONTENT_TYPE) {
+      @Override
+      protected void render(ListingWriter out) throws IOException {
+        writeChangesJson(out, first);
+      }
+    });
+    return response;
+  }
+
+  /* Returns the sequence numbers of the oldest and newest change, or 0. */
+  private long[] getChangeBounds() {
+    Cursor c = mContext.getContentResolver().query(
+        FileSharingProvider.Changes.CONTENT_URI,
+        new String[] {"min(" + FileSharingProvider.Changes.Columns._ID + ")",
+            "max(" + FileSharingProvider.Changes.Columns._ID + ")"},
+        null, null, null);
+    try {
+      if (c.moveToFirst()) {
+        return new long[] {c.getLong(0), c.getLong(1)};
+      }
+      return new long[] {0, 0};
+    } finally {
+      c.close();
+    }
+  }
+
+  private void writeChangesJson(ListingEntity.ListingWriter out, long since)
+      throws IOException {
+    Uri changesUri = FileSharingProvider.Changes.CONTENT_URI.buildUpon()
+        .appendQueryParameter(FileSharingProvider.Files.QUERY_LIMIT,
+            Integer.toString(MAX_CHANGES_PER_RESPONSE + 1))
+        .build();
+    Cursor c = mContext.getContentResolver().query(changesUri,
+        new String[] {FileSharingProvider.Changes.Columns._ID,
+            FileSharingProvider.Changes.Columns.TYPE,
+            FileSharingProvider.Changes.Columns.OPERATION,
+            FileSharingProvider.Changes.Columns.ROW_ID,
+            FileSharingProvider.Changes.Columns.FOLDER_ID},
+        FileSharingProvider.Changes.Columns._ID + ">" + since, null,
+        FileSharingProvider.Changes.Columns._ID);
+    long last = since;
+    boolean more = false;
+    out.write("{\"changes\":[");
+    try {
+      while (c.moveToNext()) {
+        if (c.getPosition() == MAX_CHANGES_PER_RESPONSE) {
+          more = true;
+          break;
+        }
+        if (c.getPosition() > 0) {
+          out.write(",");
+        }
+        last = c.getLong(0);
+        out.write("{\"seq\":").write(last)
+            .write(",\"type\":").writeJson(c.getString(1))
+            .write(",\"op\":").writeJson(c.getString(2))
+            .write(",\"id\":").write(c.getLong(3))
+            .write(",\"folder_id\":").write(c.getLong(4))
+            .write("}");
+      }
+    } finally {
+      c.close();
+    }
+    out.write("],\"last\":").write(last).write(",\"more\":")
+        .write(more ? "true" : "false").write(",\"reset\":false}");
+  }
+
+  private void writeFoldersJson(ListingEntity.ListingWriter out)
+      throws IOException {
+    Cursor c = mContext.getContentResolver().query(
+        FileSharingProvider.Folders.CONTENT_URI,
+        new String[] {FileSharingProvider.Folders.Columns._ID,
+            FileSharingProvider.Folders.Columns.DISPLAY_NAME},
+        null, null, FileSharingProvider.Folders.Columns._ID);
+    out.write("{\"folders\":[");
+    try {
+      while (c.moveToNext()) {
+        if (c.getPosition() > 0) {
+          out.write(",");
+        }
+        out.write("{\"id\":").write(c.getLong(0))
+            .write(",\"name\":").writeJson(c.getString(1)).write("}");
+      }
+    } finally {
+      c.close();
+    }
+    out.write("]}");
+  }
+
+  private void writeFilesJson(ListingEntity.ListingWriter out, long folderId,
+      ListingPage page) throws IOException {
+    Cursor c = mContext.getContentResolver().query(page.getQueryUri(),
+        new String[] {FileSharingProvider.Files.Columns._ID,
+            FileSharingProvider.Files.Columns.DISPLAY_NAME,
+            FileSharingProvider.Files.Columns.SIZE,
+            FileSharingProvider.Files.Columns.DATE_MODIFIED,
+            FileSharingProvider.Files.Columns.MIME_TYPE},
+        page.getSelection(folderId), page.getSelectionArgs(),
+        page.getSortOrder());
+    String next = null;
+    out.write("{\"files\":[");
+    try {
+      int keyIndex = c.getColumnIndexOrThrow(page.getColumn());
+      while (c.moveToNext()) {
+        if (c.getPosition() == page.getLimit()) {
+          c.moveToPosition(page.getLimit() - 1);
+          next = page.getNextLink("/api/folders/" + folderId + "/files", c,
+              0, keyIndex);
+          break;
+        }
+        if (c.getPosition() > 0) {
+          out.write(",");
+        }
+        String mimeType = c.isNull(4)
+            ? FileSharingProvider.getMimeType(c.getString(1))
+            : c.getString(4);
+        out.write("{\"id\":").write(c.getLong(0))
+            .write(",\"name\":").writeJson(c.getString(1))
+            .write(",\"size\":").write(c.getLong(2))
+            .write(",\"mtime\":").write(c.getLong(3))
+            .write(",\"content_type\":").writeJson(mimeType)
+            .write("}");
+      }
+    } finally {
+      c.close();
+    }
+    out.write("],\"next\":").writeJson(next).write("}");
+  }
+
+  private HttpResponse getLoginFormResponse()
+      throws UnsupportedEncodingException {
     HttpResponse response = new BasicHttpResponse(new HttpVersion(1, 1), 200,
         "OK");
     response.setEntity(new StringEntity(getHTMLHeader()
         + "<p>Password Required</p>" + getLoginForm() + getHTMLFooter()));
-    serverConnection.sendResponseHeader(response);
-    serverConnection.sendResponseEntity(response);
+    return response;
   }
 
-  private void sendSharedFolderListing(
-      DefaultHttpServerConnection serverConnection)
-      throws UnsupportedEncodingException, HttpException, IOException {
+  private HttpResponse getSharedFolderListingResponse(HttpRequest request)
+      throws UnsupportedEncodingException {
     HttpResponse response = new BasicHttpResponse(new HttpVersion(1, 1), 200,
         "OK");
-    response.setEntity(new StringEntity(getHTMLHeader() + getFolderListing()
-        + getHTMLFooter()));
-    serverConnection.sendResponseHeader(response);
-    serverConnection.sendResponseEntity(response);
+    String entityTag = ConditionalRequests.getWeakEntityTag(
+        FileSharingProvider.getVersionTag());
+    if (ConditionalRequests.isNotModified(request, entityTag, 0)) {
+      setNotModified(response, entityTag, 0);
+      return response;
+    }
+    addListingValidators(response, entityTag);
+    response.setEntity(new ListingEntity() {
+      @Override
+      protected void render(ListingWriter out) throws IOException {
+        out.write(getHTMLHeader());
+        writeFolderListing(out);
+        out.write(getHTMLFooter());
+      }
+    });
+    return response;
   }
 
+  /* A page of a folder, rendered from the cursor as it is sent. */
+  private HttpEntity getFileListingEntity(final long folderId,
+      final ListingPage page) {
+    return new ListingEntity() {
+      @Override
+      protected void render(ListingWriter out) throws IOException {
+        out.write(getHTMLHeader());
+        writeFileListing(out, folderId, page);
+        out.write(getUploadForm(folderId));
+        out.write(getHTMLFooter());
+      }
+    };
+  }
+
+  /**
+   * Adds the tag of a generated listing. The tag is taken before the
+   * listing is read, so a concurrent change can only make it stale early.
+   * Browsers must revalidate listings on every visit.
+   */
+  private void addListingValidators(HttpResponse response, String entityTag) {
+    response.addHeader("ETag", entityTag);
+    response.addHeader("Cache-Control", "no-cache");
+  }
+
+  /**
+   * Saves every file part of a multipart POST to the uploads directory and
+   * shares them in the folder with a single provider transaction. Parts are
+   * streamed straight to disk through a direct buffer. A file already
+   * there is never overwritten, the upload gets a numbered name instead.
+   */
   @SuppressWarnings("deprecation")
-  public void processUpload(String folderId, HttpRequest request,
-      DefaultHttpServerConnection serverConnection) throws IOException,
-      HttpException {
+  public void processUpload(String folderId,
+      HttpEntityEnclosingRequest request) throws IOException {
+    long startTime = System.currentTimeMillis();
 
-    /* Find the boundary and the content length. */
+    /* Find the boundary. */
     String contentType = request.getFirstHeader("Content-Type").getValue();
     String boundary = contentType.substring(contentType.indexOf("boundary=")
         + "boundary=".length());
-    BasicHttpEntityEnclosingRequest enclosingRequest = new BasicHttpEntityEnclosingRequest(
-        request.getRequestLine());
-    serverConnection.receiveRequestEntity(enclosingRequest);
-
-    InputStream input = enclosingRequest.getEntity().getContent();
-    MultipartStream multipartStream = new MultipartStream(input, boundary
-        .getBytes());
-    String headers = multipartStream.readHeaders();
-
-    /* Get the filename. */
-    StringTokenizer tokens = new StringTokenizer(headers, ";", false);
-    String filename = null;
-    while (tokens.hasMoreTokens() && filename == null) {
-      String token = tokens.nextToken().trim();
-      if (token.startsWith("filename=")) {
-        filename = URLDecoder.decode(token.substring("filename=\"".length(),
-            token.lastIndexOf("\"")), "utf8");
-      }
-    }
+    InputStream input = request.getEntity().getContent();
+    MultipartStream multipartStream = new MultipartStream(input,
+        boundary.getBytes(), UPLOAD_BUFFER_SIZE);
 
-    File uploadDirectory = new File("/sdcard/fileshare/uploads");
+    File uploadDirectory = new File(UPLOAD_DIRECTORY);
     if (!uploadDirectory.exists()) {
       uploadDirectory.mkdirs();
     }
 
-    /* Write the file and add it to the shared folder. */
-    File uploadFile = new File(uploadDirectory, filename);
-    FileOutputStream output = new FileOutputStream(uploadFile);
-    multipartStream.readBodyData(output);
-    output.close();
+    ByteBuffer buffer = ByteBuffer.allocateDirect(UPLOAD_BUFFER_SIZE);
+    List<Uri> fileUris = new ArrayList<Uri>();
+    long bytes = 0;
+    boolean nextPart = multipartStream.skipPreamble();
+    while (nextPart) {
+      String filename = getUploadFilename(multipartStream.readHeaders());
+      if (filename == null) {
+        /* A form field, or a file input left empty. */
+        multipartStream.discardBodyData();
+      } else {
+        /* Received beside the shared files, then moved to a free name. */
+        File partFile = File.createTempFile(".upload-", ".part",
+            uploadDirectory);
+        File uploadFile;
+        try {
+          ChannelOutputStream output = new ChannelOutputStream(
+              new FileOutputStream(partFile).getChannel(), buffer);
+          try {
+            multipartStream.readBodyData(output);
+          } finally {
+            output.close();
+          }
+          bytes += output.getCount();
+          uploadFile = mUploadSessions.moveToFreeFile(partFile,
+              uploadDirectory, filename);
+        } finally {
+          partFile.delete();
+        }
+        if (uploadFile == null) {
+          throw new IOException("Could not save upload " + filename);
+        }
+        fileUris.add(Uri.withAppendedPath(FileProvider.CONTENT_URI,
+            uploadFile.getAbsolutePath()));
+      }
+      nextPart = multipartStream.readBoundary();
+    }
 
-    Uri fileUri = Uri.withAppendedPath(FileProvider.CONTENT_URI, uploadFile
-        .getAbsolutePath());
     Uri folderUri = Uri.withAppendedPath(
         FileSharingProvider.Folders.CONTENT_URI, folderId);
-    FileSharingProvider.addFileToFolder(mContext.getContentResolver(),
-        fileUri, folderUri);
+    FileSharingProvider.addFilesToFolder(mContext.getContentResolver(),
+        fileUris, folderUri);
+
+    long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+    mUploadCount.incrementAndGet();
+    mUploadedFileCount.addAndGet(fileUris.size());
+    mUploadedBytes.addAndGet(bytes);
+    mUploadMillis.addAndGet(elapsed);
+    mLastUploadRate = bytes * 1000 / elapsed;
+    Log.i(TAG, "Received " + fileUris.size() + " files, " + bytes
+        + " bytes in " + elapsed + "ms (" + mLastUploadRate / 1024 + " KB/s)");
+  }
+
+  /**
+   * Returns the name of the file in a part, or null if the part is not a
+   * file. Some browsers send the full client path, only its last component
+   * is kept.
+   */
+  private String getUploadFilename(String headers)
+      throws UnsupportedEncodingException {
+    StringTokenizer tokens = new StringTokenizer(headers, ";\r\n", false);
+    while (tokens.hasMoreTokens()) {
+      String token = tokens.nextToken().trim();
+      if (token.startsWith("filename=\"") && token.lastIndexOf("\"") > 9) {
+        String filename = URLDecoder.decode(token.substring(
+            "filename=\"".length(), token.lastIndexOf("\"")), "utf8");
+        filename = filename.substring(Math.max(filename.lastIndexOf('/'),
+            filename.lastIndexOf('\\')) + 1);
+        return filename.length() > 0 ? filename : null;
+      }
+    }
+    return null;
   }
 
   public String getHTMLHeader() {
@@ -433,29 +1383,33 @@ public class WebServer {
     return "</body></html>";
   }
 
-  private String getFolderListing() {
+  private void writeFolderListing(ListingEntity.ListingWriter out)
+      throws IOException {
     /* Get list of folders */
     Cursor c = mContext.getContentResolver().query(
         FileSharingProvider.Folders.CONTENT_URI,
-        null, null, null, null);
-    int nameIndex = c
-        .getColumnIndexOrThrow(FileSharingProvider.Folders.Columns.DISPLAY_NAME);
-    int idIndex = c
-        .getColumnIndexOrThrow(FileSharingProvider.Folders.Columns._ID);
-    String s = "";
-    while (c.moveToNext()) {
-      String name = c.getString(nameIndex);
-      int id = c.getInt(idIndex);
-      s += folderToLink(name, id) + "<br/>";
+        new String[] {FileSharingProvider.Folders.Columns._ID,
+            FileSharingProvider.Folders.Columns.DISPLAY_NAME},
+        null, null, null);
+    try {
+      int nameIndex = c.getColumnIndexOrThrow(
+          FileSharingProvider.Folders.Columns.DISPLAY_NAME);
+      int idIndex = c
+          .getColumnIndexOrThrow(FileSharingProvider.Folders.Columns._ID);
+      while (c.moveToNext()) {
+        out.write("<a href=\"/folder/").write(c.getLong(idIndex))
+            .write("\">").writeEscaped(c.getString(nameIndex))
+            .write("</a><br/>");
+      }
+    } finally {
+      c.close();
     }
-    c.close();
-    return s;
   }
 
   /**
    * Returns a form that allows users to upload files.
    */
-  private String getUploadForm(String folderId) {
+  private String getUploadForm(long folderId) {
     if (mSharedPreferences.getBoolean(FileSharingService.PREFS_ALLOW_UPLOADS,
         false)) {
       return "<form method=\"POST\" action=\"/folder/" + folderId + "\" "
@@ -483,6 +1437,46 @@ public class WebServer {
         + "<input type=\"submit\" value=\"Login\"/></form>";
   }
 
+  /**
+   * Parses a row id from a path. Ids too large for a long don't name any
+   * row.
+   *
+   * @return The id, or -1 if there is none.
+   */
+  private static long parseId(String id) {
+    if (id == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(id);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Checks that a folder id from a path names a shared folder, before any
+   * of its listing is sent.
+   *
+   * @return The id, or -1 if it is malformed or no such folder is shared.
+   */
+  private long getSharedFolderId(String id) {
+    long folderId = parseId(id);
+    if (folderId < 0) {
+      return -1;
+    }
+    Cursor c = mContext.getContentResolver().query(
+        ContentUris.withAppendedId(FileSharingProvider.Folders.CONTENT_URI,
+            folderId),
+        new String[] {FileSharingProvider.Folders.Columns._ID}, null, null,
+        null);
+    try {
+      return c.moveToFirst() ? folderId : -1;
+    } finally {
+      c.close();
+    }
+  }
+
   private String getFileId(String firstline) {
     Pattern p = Pattern.compile("/file/(\\d+)");
     Matcher m = p.matcher(firstline);
@@ -493,32 +1487,56 @@ public class WebServer {
     return null;
   }
 
-  private String getFileListing(Uri uri) {
-    int folderId = Integer.parseInt(uri.getPathSegments().get(1));
-    Uri fileUri = FileSharingProvider.Files.CONTENT_URI;
-    String where = FileSharingProvider.Files.Columns.FOLDER_ID + "=" + folderId;
-    Cursor c = mContext.getContentResolver().query(
-        fileUri, null, where, null, null);
-    int nameIndex = c
-        .getColumnIndexOrThrow(FileSharingProvider.Files.Columns.DISPLAY_NAME);
-    int idIndex = c
-        .getColumnIndexOrThrow(FileSharingProvider.Files.Columns._ID);
-    String s = "";
+  private void writeFileListing(ListingEntity.ListingWriter out, long folderId,
+      ListingPage page) throws IOException {
+    String keyColumn = page.getColumn();
+    String[] projection = keyColumn.equals(
+        FileSharingProvider.Files.Columns.DISPLAY_NAME)
+        ? new String[] {FileSharingProvider.Files.Columns._ID,
+            FileSharingProvider.Files.Columns.DISPLAY_NAME}
+        : new String[] {FileSharingProvider.Files.Columns._ID,
+            FileSharingProvider.Files.Columns.DISPLAY_NAME, keyColumn};
+    Cursor c = mContext.getContentResolver().query(page.getQueryUri(),
+        projection, page.getSelection(folderId), page.getSelectionArgs(),
+        page.getSortOrder());
+    out.write("Sort by:");
+    for (String sort : ListingPage.getSorts()) {
+      out.write(" <a href=\"").writeEscaped(page.getSortLink(folderId, sort))
+          .write("\">").write(sort).write("</a>");
+    }
+    out.write("<br/>");
     boolean hasMusic = false;
-    while (c.moveToNext()) {
-      String name = c.getString(nameIndex);
-      int id = c.getInt(idIndex);
-      s += fileToLink(name, id) + "<br/>";
-      if (name.endsWith(".mp3")) {
-        hasMusic = true;
+    try {
+      int nameIndex = c.getColumnIndexOrThrow(
+          FileSharingProvider.Files.Columns.DISPLAY_NAME);
+      int idIndex = c
+          .getColumnIndexOrThrow(FileSharingProvider.Files.Columns._ID);
+      int keyIndex = c.getColumnIndexOrThrow(keyColumn);
+      int rows = 0;
+      while (c.moveToNext()) {
+        if (++rows > page.getLimit()) {
+          /* The extra row only says there is more. */
+          c.moveToPosition(page.getLimit() - 1);
+          out.write("<a href=\"").writeEscaped(page.getNextLink(
+              "/folder/" + folderId, c, idIndex, keyIndex))
+              .write("\">Next page</a><br/>");
+          break;
+        }
+        String name = c.getString(nameIndex);
+        out.write("<a href=\"/file/").write(c.getLong(idIndex)).write("/")
+            .writeEscaped(Uri.encode(name)).write("\">").writeEscaped(name)
+            .write("</a><br/>");
+        if (name.endsWith(".mp3")) {
+          hasMusic = true;
+        }
       }
+    } finally {
+      c.close();
     }
-    c.close();
     if (hasMusic) {
-      s += getPlaylistLink(folderId) + "<br/>";
+      out.write(getPlaylistLink(folderId)).write("<br/>");
     }
-    s += getZipLink(folderId) + "<br/>";
-    return s;
+    out.write(getZipLink(folderId)).write("<br/>");
   }
   
   private String getPlaylistLink(long folderId) {
@@ -531,45 +1549,415 @@ public class WebServer {
            "Zip of Entire Folder</a>";
   }
 
-  private void addFileEntity(final Uri uri, HttpResponse response)
+  /**
+   * Sends a shared file. Files served recently come from mFileCache already
+   * open or mapped, and only files on disk are stat'ed to check they haven't
+   * changed, so repeat downloads don't touch the provider.
+   */
+  private void addFileEntity(long fileId, HttpRequest request,
+      HttpResponse response) throws IOException {
+    Uri uri = ContentUris.withAppendedId(FileSharingProvider.Files.CONTENT_URI,
+        fileId);
+    FileCache.Entry entry = mFileCache.acquire(fileId);
+    if (entry != null && !entry.isCurrent()) {
+      mFileCache.remove(fileId, entry);
+      mFileCache.release(entry);
+      entry = null;
+    }
+    if (entry == null) {
+      entry = openFile(uri, response);
+      if (entry == null) {
+        return;
+      }
+      entry = mFileCache.add(fileId, entry);
+    }
+    boolean sending = false;
+    try {
+      sending = addFileEntity(uri, entry, request, response);
+    } finally {
+      if (!sending) {
+        mFileCache.release(entry);
+      }
+    }
+  }
+
+  /**
+   * Everything needed to send a file comes from its row in one lookup by
+   * _id. Files on disk are stat'ed for validators anyway, and their row is
+   * corrected if it turns out to be stale.
+   *
+   * @return The file opened as a channel, or null if the provider can only
+   *     stream it, in which case the stream has been set as the response.
+   */
+  private FileCache.Entry openFile(Uri uri, HttpResponse response)
       throws IOException {
-    if (mTransferStartedListener != null) {
-      mTransferStartedListener.started(uri);
+    Cursor c = mContext.getContentResolver().query(uri, new String[] {
+        FileSharingProvider.Files.Columns.DISPLAY_NAME,
+        FileSharingProvider.Files.Columns._DATA,
+        FileSharingProvider.Files.Columns.SIZE,
+        FileSharingProvider.Files.Columns.DATE_MODIFIED,
+        FileSharingProvider.Files.Columns.MIME_TYPE}, null, null, null);
+    String name;
+    Uri data;
+    long storedSize;
+    long storedDate;
+    String contentType;
+    try {
+      if (!c.moveToFirst()) {
+        throw new FileNotFoundException("No shared file " + uri);
+      }
+      name = c.getString(0);
+      data = Uri.parse(c.getString(1));
+      storedSize = c.getLong(2);
+      storedDate = c.getLong(3);
+      contentType = c.isNull(4) ? FileSharingProvider.getMimeType(name)
+          : c.getString(4);
+    } finally {
+      c.close();
     }
 
-    Cursor c = mContext.getContentResolver().query(uri, null, null, null, null);
-    c.moveToFirst();
-    int nameIndex = c
-        .getColumnIndexOrThrow(FileSharingProvider.Files.Columns.DISPLAY_NAME);
-    String name = c.getString(nameIndex);
-    int dataIndex = c
-        .getColumnIndexOrThrow(FileSharingProvider.Files.Columns._DATA);
-    Uri data = Uri.parse(c.getString(dataIndex));
+    /* Files we can open as a channel support ranges, and are sent without
+     * copying them through the heap. */
+    File file = FileProvider.getFile(data);
+    FileChannel channel = openFileChannel(data, file);
+    if (channel == null) {
+      /* Nobody revalidates the stored size of other providers' content, so
+       * ask for it each time. A wrong length truncates or stalls the body. */
+      long sizeBytes = getProviderSize(data);
+      InputStream input = new BufferedInputStream(
+          mContext.getContentResolver().openInputStream(data),
+          MimeTypes.SNIFF_LENGTH);
+      if (MimeTypes.isUnknown(contentType)) {
+        contentType = sniffMimeType(uri, MimeTypes.sniff(input), contentType);
+      }
+      notifyTransferStarted(uri);
 
-    c = mContext.getContentResolver().query(data, null, null, null, null);
-    c.moveToFirst();
-    int sizeIndex = c.getColumnIndexOrThrow(OpenableColumns.SIZE);
-    int sizeBytes = c.getInt(sizeIndex);
-    c.close();
+      response.addHeader("Content-Type", contentType);
+      addContentSafetyHeaders(response, contentType);
+      response.setEntity(new InputStreamEntity(input, sizeBytes));
+      return null;
+    }
 
-    InputStream input = mContext.getContentResolver().openInputStream(data);
+    if (MimeTypes.isUnknown(contentType)) {
+      contentType = sniffMimeType(uri, MimeTypes.sniff(channel), contentType);
+    }
+    long length = channel.size();
+    long lastModified = 0;
+    String entityTag = null;
+    if (file != null) {
+      lastModified = file.lastModified();
+      entityTag = ConditionalRequests.getFileEntityTag(file, length,
+          lastModified);
+      if (length != storedSize || lastModified != storedDate) {
+        FileSharingProvider.updateFileStats(mContext.getContentResolver(),
+            ContentUris.parseId(uri), length, lastModified);
+      }
+      if (mFileCache.shouldMap(length)) {
+        /* The mapping outlives the channel, no descriptor is kept. */
+        try {
+          ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+              length);
+          return new FileCache.Entry(name, data, contentType, file, null,
+              mapped, length, lastModified, entityTag);
+        } finally {
+          channel.close();
+        }
+      }
+    }
+    return new FileCache.Entry(name, data, contentType, file, channel, null,
+        length, lastModified, entityTag);
+  }
+
+  /**
+   * Keeps the type sniffed from the start of a file in its row, so it is
+   * only sniffed once. Files that match nothing are sniffed again the next
+   * time they are opened, which costs a read of their first block.
+   *
+   * @return The sniffed type, or the stored one if nothing matched.
+   */
+  private String sniffMimeType(Uri uri, String sniffed, String stored) {
+    if (sniffed == null) {
+      return stored;
+    }
+    FileSharingProvider.updateMimeType(mContext.getContentResolver(),
+        ContentUris.parseId(uri), sniffed);
+    return sniffed;
+  }
+
+  /**
+   * Answers a request for an opened file.
+   *
+   * @return Whether an entity now holds the entry, to release it once sent.
+   */
+  private boolean addFileEntity(Uri uri, FileCache.Entry entry,
+      HttpRequest request, HttpResponse response) throws IOException {
+    long length = entry.mLength;
+    long lastModified = entry.mLastModified;
+    String entityTag = entry.mEntityTag;
+    /* Ranges are of the file as it is, so only whole files are compressed. */
+    String encoding = null;
+    if (ContentEncoding.isCompressible(entry.mContentType)) {
+      response.addHeader("Vary", "Accept-Encoding");
+      if (request.getFirstHeader("Range") == null
+          && length >= MIN_ENCODED_LENGTH) {
+        encoding = ContentEncoding.select(request);
+      }
+    }
+    if (encoding != null) {
+      entityTag = ContentEncoding.getEntityTag(entityTag, encoding);
+    }
+    if (ConditionalRequests.isNotModified(request, entityTag, lastModified)) {
+      setNotModified(response, entityTag, lastModified);
+      return false;
+    }
+    notifyTransferStarted(uri);
+    addContentSafetyHeaders(response, entry.mContentType);
 
-    String contentType = "application/octet-stream";
-    if (name.endsWith(".jpg")) {
-      contentType = "image/jpg";
+    if (encoding != null) {
+      addValidators(response, entityTag, lastModified);
+      return addEncodedFileEntity(entry, encoding, response);
     }
+    response.addHeader("Accept-Ranges", "bytes");
+    addValidators(response, entityTag, lastModified);
 
-    response.addHeader("Content-Type", contentType);
-    response.addHeader("Content-Length", "" + sizeBytes);
-    response.setEntity(new InputStreamEntity(input, sizeBytes));
+    List<ByteRange> ranges = null;
+    Header rangeHeader = request.getFirstHeader("Range");
+    if (rangeHeader != null && ConditionalRequests.isRangeApplicable(request,
+        entityTag, lastModified)) {
+      ranges = ByteRange.parse(rangeHeader.getValue(), length);
+    }
+    if (ranges == null) {
+      response.addHeader("Content-Type", entry.mContentType);
+      response.setEntity(newFileEntity(entry, 0, length));
+    } else if (ranges.isEmpty()) {
+      response.setStatusLine(response.getProtocolVersion(), 416,
+          "Requested Range Not Satisfiable");
+      response.addHeader("Content-Range", "bytes */" + length);
+      return false;
+    } else if (ranges.size() == 1) {
+      ByteRange range = ranges.get(0);
+      response.setStatusLine(response.getProtocolVersion(), 206,
+          "Partial Content");
+      response.addHeader("Content-Type", entry.mContentType);
+      response.addHeader("Content-Range", range.toContentRange(length));
+      response.setEntity(newFileEntity(entry, range.getStart(),
+          range.getLength()));
+    } else {
+      HttpEntity entity = newMultipartEntity(entry, ranges);
+      response.setStatusLine(response.getProtocolVersion(), 206,
+          "Partial Content");
+      response.addHeader("Content-Type", entity.getContentType().getValue());
+      response.setEntity(entity);
+    }
+    return true;
   }
 
-  private String folderToLink(String folderName, int folderId) {
-    return "<a href=\"/folder/" + folderId + "\">" + folderName + "</a>";
+  /**
+   * Sends a whole file compressed. Files on disk are kept compressed in the
+   * EncodedFileCache once they have been sent that way, anything else is
+   * compressed every time.
+   *
+   * @return Whether an entity now holds the entry, to release it once sent.
+   */
+  private boolean addEncodedFileEntity(FileCache.Entry entry,
+      String encoding, HttpResponse response) throws IOException {
+    response.addHeader("Content-Type", entry.mContentType);
+    response.addHeader("Content-Encoding", encoding);
+    if (entry.mEntityTag == null
+        || !EncodedFileCache.shouldCache(entry.mLength)) {
+      response.setEntity(new EncodedEntity(
+          newFileEntity(entry, 0, entry.mLength), encoding));
+      return true;
+    }
+
+    final EncodedFileCache cache =
+        EncodedFileCache.getInstance(mContext.getCacheDir());
+    final String key = EncodedFileCache.getKey(encoding, entry.mEntityTag);
+    EncodedFileCache.Record record = cache.acquire(key);
+    if (record == null) {
+      response.setEntity(newEncodingEntity(cache, key, entry, encoding));
+      return true;
+    }
+    final EncodedFileCache.Record sent = record;
+    boolean sending = false;
+    try {
+      FileChannel channel = new FileInputStream(record.mEncoded).getChannel();
+      response.setEntity(new FileChannelEntity(channel, 0, record.mLength) {
+        @Override
+        protected void release() throws IOException {
+          try {
+            super.release();
+          } finally {
+            cache.release(sent);
+          }
+        }
+      });
+      sending = true;
+    } finally {
+      if (!sending) {
+        cache.release(record);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Compresses a whole file while it is sent, keeping a copy in the
+   * EncodedFileCache for the next request. Nothing is compressed before the
+   * headers go out, and the copy is only kept if all of it was sent.
+   */
+  private HttpEntity newEncodingEntity(final EncodedFileCache cache,
+      final String key, FileCache.Entry entry, String encoding) {
+    return new EncodedEntity(newFileEntity(entry, 0, entry.mLength),
+        encoding) {
+      @Override
+      public void writeTo(OutputStream out) throws IOException {
+        File encoded = cache.createEncodedFile();
+        boolean done = false;
+        try {
+          OutputStream copy = new FileOutputStream(encoded);
+          try {
+            super.writeTo(new TeeOutputStream(out, copy));
+          } finally {
+            copy.close();
+          }
+          done = true;
+        } finally {
+          if (!done) {
+            encoded.delete();
+          }
+        }
+        cache.release(cache.add(key,
+            new EncodedFileCache.Record(encoded, encoded.length())));
+      }
+    };
+  }
+
+  /* Sends part of a cached file, handing it back once sent. */
+  private HttpEntity newFileEntity(final FileCache.Entry entry,
+      long position, long length) {
+    if (entry.mMapped != null) {
+      return new MappedFileEntity(entry.mMapped, position, length) {
+        @Override
+        protected void release() {
+          mFileCache.release(entry);
+        }
+      };
+    }
+    return new FileChannelEntity(entry.mChannel, position, length) {
+      @Override
+      protected void release() {
+        mFileCache.release(entry);
+      }
+    };
+  }
+
+  private HttpEntity newMultipartEntity(final FileCache.Entry entry,
+      List<ByteRange> ranges) throws IOException {
+    if (entry.mMapped != null) {
+      return new MultipartByteRangesEntity(entry.mMapped, ranges,
+          entry.mLength, entry.mContentType) {
+        @Override
+        protected void release() {
+          mFileCache.release(entry);
+        }
+      };
+    }
+    return new MultipartByteRangesEntity(entry.mChannel, ranges,
+        entry.mLength, entry.mContentType) {
+      @Override
+      protected void release() {
+        mFileCache.release(entry);
+      }
+    };
+  }
+
+  /**
+   * Asks the provider of a file we could not open as a channel its size.
+   *
+   * @return The size, or -1 if the provider doesn't say, to send it chunked.
+   */
+  private long getProviderSize(Uri data) {
+    Cursor c = mContext.getContentResolver().query(data,
+        new String[] {OpenableColumns.SIZE}, null, null, null);
+    if (c == null) {
+      return -1;
+    }
+    try {
+      return c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : -1;
+    } finally {
+      c.close();
+    }
   }
 
-  private String fileToLink(String fileName, int fileId) {
-    return "<a href=\"/file/" + fileId + "/" + fileName + "\">" + fileName
-        + "</a>";
+  /**
+   * Keeps uploaded pages, SVG images and scripts from running in our origin,
+   * where they could use the session cookie: they are downloaded instead of
+   * shown. nosniff stops browsers guessing such a type for anything else.
+   */
+  private static void addContentSafetyHeaders(HttpResponse response,
+      String contentType) {
+    response.addHeader("X-Content-Type-Options", "nosniff");
+    if (MimeTypes.isActive(contentType)) {
+      response.addHeader("Content-Disposition", "attachment");
+    }
+  }
+
+  private void notifyTransferStarted(Uri uri) {
+    if (mTransferStartedListener != null) {
+      mTransferStartedListener.started(uri);
+    }
+  }
+
+  private void addValidators(HttpResponse response, String entityTag,
+      long lastModified) {
+    if (entityTag != null) {
+      response.addHeader("ETag", entityTag);
+    }
+    if (lastModified > 0) {
+      response.addHeader("Last-Modified",
+          DateUtils.formatDate(new Date(lastModified)));
+    }
+  }
+
+  /* Turns a response into a 304 that only carries the validators. */
+  private void setNotModified(HttpResponse response, String entityTag,
+      long lastModified) {
+    response.setStatusLine(response.getProtocolVersion(), 304,
+        "Not Modified");
+    addValidators(response, entityTag, lastModified);
+  }
+
+  /**
+   * Opens a shared file as a channel. Files from FileProvider are opened
+   * directly, other providers are asked for a file descriptor.
+   *
+   * @return The channel, or null if the provider can only stream the file.
+   */
+  private FileChannel openFileChannel(Uri data, File file)
+      throws FileNotFoundException {
+    if (file != null) {
+      return new FileInputStream(file).getChannel();
+    }
+    ParcelFileDescriptor descriptor;
+    try {
+      descriptor = mContext.getContentResolver().openFileDescriptor(data, "r");
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    if (descriptor == null) {
+      return null;
+    }
+    if (descriptor.getStatSize() < 0) {
+      /* A pipe or socket, we can't seek in it. */
+      try {
+        descriptor.close();
+      } catch (IOException e) {
+        Log.d(TAG, "Problem closing descriptor " + e.toString());
+      }
+      return null;
+    }
+    return new ParcelFileDescriptor.AutoCloseInputStream(descriptor)
+        .getChannel();
   }
 }
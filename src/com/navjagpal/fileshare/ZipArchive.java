@@ -0,0 +1,907 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * ZIP file of a shared folder whose layout is computed before anything is
+ * sent.
+ *
+ * Compressed media is stored as is. Other files are deflated in parallel into
+ * temporary files, so the size and offset of every entry, and with them the
+ * length of the whole archive, are known up front. Any region of the archive
+ * can then be written, which is what Range requests need.
+ *
+ * The layout is deterministic: entries are in the order they were shared and
+ * their times come from the files. As long as no file changes, building the
+ * archive again yields the same bytes, so an interrupted download can be
+ * resumed at any offset. Checksums and compressed sizes are kept by the
+ * {@link ZipEntryCache}, so the layout can be built again without reading
+ * the files, and only entries actually sent are deflated again.
+ */
+public class ZipArchive {
+
+  private static final String TAG = "FileSharer ZipArchive";
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /* Extensions of formats that are already compressed. */
+  private static final String[] STORED_EXTENSIONS = {
+      ".jpg", ".jpeg", ".png", ".gif", ".mp3", ".mp4", ".m4a", ".m4v", ".3gp",
+      ".aac", ".ogg", ".zip", ".apk", ".gz"
+  };
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+  private static final int METHOD_STORED = 0;
+  private static final int METHOD_DEFLATED = 8;
+
+  private static final int VERSION_DEFAULT = 20;
+  private static final int VERSION_ZIP64 = 45;
+
+  /* Names are encoded as UTF-8. */
+  private static final int FLAG_UTF8 = 0x0800;
+
+  private static final long ZIP64_LIMIT = 0xffffffffL;
+  private static final int ZIP64_ENTRY_LIMIT = 0xffff;
+
+  /* Compressible files larger than this are stored, so that building the
+   * archive again to resume a download never means deflating gigabytes. */
+  private static final long MAX_DEFLATED_SIZE = 16 * 1024 * 1024;
+
+  /* Part of the entity tag, change it whenever the layout rules change. */
+  private static final int LAYOUT_VERSION = 1;
+
+  /* Entry times don't depend on the time zone of the device. */
+  private static final TimeZone DOS_TIME_ZONE = TimeZone.getTimeZone("UTC");
+
+  private static final ExecutorService sExecutor =
+      Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+          new CompressorThreadFactory());
+
+  private final ContentResolver mContentResolver;
+
+  private final File mTempDir;
+
+  private final List<Entry> mEntries;
+
+  private final String mEntityTag;
+
+  private final List<Segment> mSegments = new ArrayList<Segment>();
+
+  /* Guarded by itself, compressor threads add to it. */
+  private final List<File> mTempFiles = new ArrayList<File>();
+
+  /* Guarded by mTempFiles. */
+  private final List<ZipEntryCache.Record> mCacheRecords =
+      new ArrayList<ZipEntryCache.Record>();
+
+  /* Guarded by mTempFiles, stored in one go once the archive is prepared. */
+  private final Map<String, ZipEntryCache.Record> mNewCacheRecords =
+      new HashMap<String, ZipEntryCache.Record>();
+
+  private boolean mReleased;
+
+  private long mLength;
+
+  private ZipArchive(ContentResolver contentResolver, File tempDir,
+      List<Entry> entries) {
+    mContentResolver = contentResolver;
+    mTempDir = tempDir;
+    mEntries = entries;
+    mEntityTag = computeEntityTag(entries);
+  }
+
+  /**
+   * Lists the files of a shared folder in a stable order. This only stats
+   * the files, call {@link #prepare} before writing the archive.
+   *
+   * @param tempDir Where compressed entries are kept.
+   */
+  public static ZipArchive create(ContentResolver contentResolver,
+      String folderId, File tempDir) throws IOException {
+    Cursor c = contentResolver.query(
+        FileSharingProvider.Files.CONTENT_URI,
+        new String[] {
+            FileSharingProvider.Files.Columns.DISPLAY_NAME,
+            FileSharingProvider.Files.Columns._DATA
+        },
+        FileSharingProvider.Files.Columns.FOLDER_ID + "=?",
+        new String[] {folderId}, FileSharingProvider.Files.Columns._ID);
+    List<Entry> entries = new ArrayList<Entry>();
+    try {
+      int nameIndex = c.getColumnIndexOrThrow(
+          FileSharingProvider.Files.Columns.DISPLAY_NAME);
+      int dataIndex = c.getColumnIndexOrThrow(
+          FileSharingProvider.Files.Columns._DATA);
+      while (c.moveToNext()) {
+        Entry entry = new Entry(c.getString(nameIndex),
+            Uri.parse(c.getString(dataIndex)));
+        if (entry.mFile != null) {
+          if (!entry.mFile.isFile()) {
+            /* Files that have disappeared since they were shared are left
+             * out. */
+            Log.w(TAG, "Skipping missing file " + entry.mFile);
+            continue;
+          }
+          entry.mSize = entry.mFile.length();
+          entry.mLastModified = entry.mFile.lastModified();
+        }
+        entries.add(entry);
+      }
+    } finally {
+      c.close();
+    }
+    return new ZipArchive(contentResolver, tempDir, entries);
+  }
+
+  /**
+   * Returns a strong entity tag for the archive, or null if it contains files
+   * from other providers whose content we can't validate.
+   */
+  public String getEntityTag() {
+    return mEntityTag;
+  }
+
+  /**
+   * The archive is fully determined by the name, path, size and modification
+   * time of its files, so those are all the tag needs.
+   */
+  private static String computeEntityTag(List<Entry> entries) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      return null;
+    }
+    StringBuilder description = new StringBuilder();
+    description.append(LAYOUT_VERSION).append('\n');
+    for (Entry entry : entries) {
+      if (entry.mFile == null) {
+        return null;
+      }
+      description.append(entry.mName).append('\0')
+          .append(ZipEntryCache.getKey(entry.mFile, entry.mSize,
+              entry.mLastModified)).append('\n');
+    }
+    byte[] hash;
+    try {
+      hash = digest.digest(description.toString().getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      return null;
+    }
+    StringBuilder tag = new StringBuilder("\"zip-");
+    for (int i = 0; i < 10; i++) {
+      tag.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+      tag.append(Character.forDigit(hash[i] & 0xf, 16));
+    }
+    return tag.append('"').toString();
+  }
+
+  /* Returns the exact length of the archive in bytes. */
+  public long getLength() {
+    return mLength;
+  }
+
+  /**
+   * Deletes the temporary files behind the archive and lets go of the cached
+   * entries it used.
+   */
+  public void release() {
+    ZipEntryCache cache = ZipEntryCache.getInstance(mTempDir);
+    synchronized (mTempFiles) {
+      mReleased = true;
+      for (File file : mTempFiles) {
+        if (!file.delete()) {
+          Log.w(TAG, "Could not delete " + file);
+        }
+      }
+      mTempFiles.clear();
+      for (ZipEntryCache.Record record : mCacheRecords) {
+        cache.release(record);
+      }
+      mCacheRecords.clear();
+    }
+  }
+
+  /**
+   * Checksums every entry and compresses those worth compressing, one task
+   * per entry spread over all cores, then lays out the archive. Entries
+   * already in the {@link ZipEntryCache} are not read again.
+   */
+  public void prepare() throws IOException {
+    List<Future<?>> results = new ArrayList<Future<?>>();
+    for (final Entry entry : mEntries) {
+      results.add(sExecutor.submit(new Callable<Void>() {
+        public Void call() throws IOException {
+          prepareEntry(entry);
+          return null;
+        }
+      }));
+    }
+    try {
+      for (Future<?> result : results) {
+        result.get();
+      }
+    } catch (InterruptedException e) {
+      cancel(results);
+      release();
+      throw new InterruptedIOException("Interrupted while building archive");
+    } catch (ExecutionException e) {
+      cancel(results);
+      release();
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+    Map<String, ZipEntryCache.Record> newCacheRecords;
+    synchronized (mTempFiles) {
+      newCacheRecords =
+          new HashMap<String, ZipEntryCache.Record>(mNewCacheRecords);
+      mNewCacheRecords.clear();
+    }
+    ZipEntryCache.getInstance(mTempDir).store(newCacheRecords);
+    layout(mEntries);
+  }
+
+  private static void cancel(List<Future<?>> results) {
+    for (Future<?> result : results) {
+      result.cancel(true);
+    }
+  }
+
+  /* Finds the data of an entry and computes its checksum and sizes. */
+  private void prepareEntry(Entry entry) throws IOException {
+    if (entry.mFile == null) {
+      /* Files from other providers are copied so we can read them again. */
+      InputStream input;
+      try {
+        input = mContentResolver.openInputStream(entry.mUri);
+      } catch (FileNotFoundException e) {
+        Log.w(TAG, "Skipping missing file " + entry.mUri);
+        return;
+      }
+      File copy = createTempFile(mTempDir);
+      OutputStream output = new FileOutputStream(copy);
+      try {
+        copy(input, output, null, Long.MAX_VALUE);
+      } finally {
+        input.close();
+        output.close();
+      }
+      entry.mFile = copy;
+      entry.mSize = copy.length();
+      prepareData(entry, false);
+      if (entry.mMethod == METHOD_DEFLATED) {
+        deleteTempFile(copy);
+      }
+      return;
+    }
+
+    ZipEntryCache cache = ZipEntryCache.getInstance(mTempDir);
+    String key = ZipEntryCache.getKey(entry.mFile, entry.mSize,
+        entry.mLastModified);
+    ZipEntryCache.Record record = cache.acquire(key);
+    boolean added = false;
+    if (record == null) {
+      prepareData(entry, true);
+      ZipEntryCache.Record newRecord = new ZipEntryCache.Record(entry.mCrc,
+          entry.mMethod == METHOD_DEFLATED ? entry.mData : null,
+          entry.mCompressedSize, entry.mDeflatedCrc, true);
+      record = cache.add(key, newRecord);
+      added = record == newRecord;
+    }
+    synchronized (mTempFiles) {
+      if (mReleased) {
+        cache.release(record);
+        throw new IOException("Archive has been released");
+      }
+      mCacheRecords.add(record);
+      if (added) {
+        mNewCacheRecords.put(key, record);
+      }
+    }
+    entry.mCrc = record.mCrc;
+    if (record.mDeflated != null) {
+      entry.mMethod = METHOD_DEFLATED;
+      entry.mData = record.mDeflated;
+      entry.mCompressedSize = record.mCompressedSize;
+      entry.mRecord = record;
+    } else {
+      entry.mMethod = METHOD_STORED;
+      entry.mData = entry.mFile;
+      entry.mCompressedSize = entry.mSize;
+    }
+  }
+
+  /**
+   * Reads the first mSize bytes of an entry's file, computing the checksum
+   * and deflating them if that's worthwhile.
+   *
+   * @param cached Whether deflated data goes into the {@link ZipEntryCache}.
+   */
+  private void prepareData(Entry entry, boolean cached) throws IOException {
+    CRC32 crc = new CRC32();
+    InputStream input = new FileInputStream(entry.mFile);
+    try {
+      if (isCompressed(entry.mName) || entry.mSize > MAX_DEFLATED_SIZE) {
+        copy(input, null, crc, entry.mSize);
+      } else {
+        File deflated = cached
+            ? ZipEntryCache.getInstance(mTempDir).createDeflatedFile()
+            : createTempFile(mTempDir);
+        CRC32 deflatedCrc = new CRC32();
+        boolean deflatedAll = false;
+        try {
+          deflate(input, deflated, crc, deflatedCrc, entry.mSize);
+          deflatedAll = true;
+        } finally {
+          /* Temp files go with the archive, cache files are ours. */
+          if (!deflatedAll && cached) {
+            deflated.delete();
+          }
+        }
+        entry.mData = deflated;
+        entry.mDeflatedCrc = deflatedCrc.getValue();
+        entry.mCompressedSize = deflated.length();
+        entry.mMethod = METHOD_DEFLATED;
+      }
+    } finally {
+      input.close();
+    }
+    entry.mCrc = crc.getValue();
+    if (entry.mMethod == METHOD_DEFLATED
+        && entry.mCompressedSize >= entry.mSize) {
+      /* Didn't shrink, store it instead. */
+      if (cached) {
+        entry.mData.delete();
+      } else {
+        deleteTempFile(entry.mData);
+      }
+      entry.mMethod = METHOD_STORED;
+    }
+    if (entry.mMethod == METHOD_STORED) {
+      entry.mData = entry.mFile;
+      entry.mCompressedSize = entry.mSize;
+    }
+  }
+
+  /**
+   * Deflates length bytes of a stream into a file, updating the checksums of
+   * the data read and of the data written.
+   */
+  private static void deflate(InputStream input, File file, CRC32 crc,
+      CRC32 deflatedCrc, long length) throws IOException {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    OutputStream output = new DeflaterOutputStream(new CheckedOutputStream(
+        new FileOutputStream(file), deflatedCrc), deflater, BUFFER_SIZE);
+    try {
+      copy(input, output, crc, length);
+      output.close();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Copies up to length bytes of a stream, updating the checksum. The output
+   * and checksum may be null.
+   */
+  private static void copy(InputStream input, OutputStream output, CRC32 crc,
+      long length) throws IOException {
+    byte[] buf = new byte[BUFFER_SIZE];
+    long remaining = length;
+    while (remaining > 0) {
+      int len = input.read(buf, 0, (int) Math.min(buf.length, remaining));
+      if (len <= 0) {
+        break;
+      }
+      if (crc != null) {
+        crc.update(buf, 0, len);
+      }
+      if (output != null) {
+        output.write(buf, 0, len);
+      }
+      remaining -= len;
+    }
+    if (remaining > 0 && length != Long.MAX_VALUE) {
+      throw new IOException("File shrank while it was being read");
+    }
+  }
+
+  private static boolean isCompressed(String name) {
+    String lowerCaseName = name.toLowerCase();
+    for (String extension : STORED_EXTENSIONS) {
+      if (lowerCaseName.endsWith(extension)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private File createTempFile(File tempDir) throws IOException {
+    synchronized (mTempFiles) {
+      /* A cancelled task may still be running after a failed build. */
+      if (mReleased) {
+        throw new IOException("Archive has been released");
+      }
+      File file = File.createTempFile("zip", ".tmp", tempDir);
+      mTempFiles.add(file);
+      return file;
+    }
+  }
+
+  /**
+   * Deflates an entry known only from its stored record, the first time
+   * its data is sent. The result has to be exactly what the archive was laid
+   * out from; if the file no longer gives that, the record is dropped.
+   */
+  private void writeData(Entry entry) throws IOException {
+    ZipEntryCache.Record record = entry.mRecord;
+    synchronized (record) {
+      if (record.isWritten()) {
+        return;
+      }
+      CRC32 crc = new CRC32();
+      CRC32 deflatedCrc = new CRC32();
+      InputStream input = new FileInputStream(entry.mFile);
+      try {
+        deflate(input, record.mDeflated, crc, deflatedCrc, entry.mSize);
+      } finally {
+        input.close();
+      }
+      if (crc.getValue() != record.mCrc
+          || record.mDeflated.length() != record.mCompressedSize
+          || deflatedCrc.getValue() != record.mDeflatedCrc) {
+        record.mDeflated.delete();
+        ZipEntryCache.getInstance(mTempDir).remove(ZipEntryCache.getKey(
+            entry.mFile, entry.mSize, entry.mLastModified), record);
+        throw new IOException("Entry changed since the archive was laid out: "
+            + entry.mFile);
+      }
+      ZipEntryCache.getInstance(mTempDir).setWritten(record);
+    }
+  }
+
+  private void deleteTempFile(File file) {
+    synchronized (mTempFiles) {
+      mTempFiles.remove(file);
+    }
+    file.delete();
+  }
+
+  /**
+   * Lays out local headers, entry data, the central directory and the end
+   * records as a list of segments.
+   */
+  private void layout(List<Entry> allEntries) throws IOException {
+    /* Files from other providers that couldn't be opened have no data. */
+    List<Entry> entries = new ArrayList<Entry>();
+    for (Entry entry : allEntries) {
+      if (entry.mData != null) {
+        entries.add(entry);
+      }
+    }
+    long offset = 0;
+    for (Entry entry : entries) {
+      entry.mOffset = offset;
+      offset += addBytes(offset, getLocalHeader(entry));
+      offset += addFile(offset, entry);
+    }
+    long centralDirectoryOffset = offset;
+    ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+    for (Entry entry : entries) {
+      centralDirectory.write(getCentralHeader(entry));
+    }
+    offset += addBytes(offset, centralDirectory.toByteArray());
+    offset += addBytes(offset, getEndRecords(entries.size(),
+        centralDirectoryOffset, centralDirectory.size()));
+    mLength = offset;
+  }
+
+  private long addBytes(long offset, byte[] bytes) {
+    mSegments.add(new Segment(offset, bytes.length, bytes, null, null));
+    return bytes.length;
+  }
+
+  private long addFile(long offset, Entry entry) {
+    mSegments.add(new Segment(offset, entry.mCompressedSize, null,
+        entry.mData, entry.mRecord != null ? entry : null));
+    return entry.mCompressedSize;
+  }
+
+  /* Opens the data of a segment, deflating it first if need be. */
+  private FileChannel openSegment(Segment segment) throws IOException {
+    if (segment.mEntry != null) {
+      writeData(segment.mEntry);
+    }
+    return new FileInputStream(segment.mFile).getChannel();
+  }
+
+  private static byte[] getLocalHeader(Entry entry) {
+    boolean zip64 = entry.mSize >= ZIP64_LIMIT
+        || entry.mCompressedSize >= ZIP64_LIMIT;
+    HeaderBuilder header = new HeaderBuilder();
+    header.putInt(LOCAL_HEADER_SIGNATURE);
+    header.putShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+    header.putShort(FLAG_UTF8);
+    header.putShort(entry.mMethod);
+    header.putInt(getDosTime(entry.mLastModified));
+    header.putInt((int) entry.mCrc);
+    header.putInt((int) (zip64 ? ZIP64_LIMIT : entry.mCompressedSize));
+    header.putInt((int) (zip64 ? ZIP64_LIMIT : entry.mSize));
+    header.putShort(entry.mNameBytes.length);
+    header.putShort(zip64 ? 20 : 0);
+    header.putBytes(entry.mNameBytes);
+    if (zip64) {
+      header.putShort(1);
+      header.putShort(16);
+      header.putLong(entry.mSize);
+      header.putLong(entry.mCompressedSize);
+    }
+    return header.toByteArray();
+  }
+
+  private static byte[] getCentralHeader(Entry entry) {
+    /* Only the fields that overflow go into the ZIP64 extra field. */
+    HeaderBuilder extra = new HeaderBuilder();
+    if (entry.mSize >= ZIP64_LIMIT) {
+      extra.putLong(entry.mSize);
+    }
+    if (entry.mCompressedSize >= ZIP64_LIMIT) {
+      extra.putLong(entry.mCompressedSize);
+    }
+    if (entry.mOffset >= ZIP64_LIMIT) {
+      extra.putLong(entry.mOffset);
+    }
+    byte[] extraBytes = extra.toByteArray();
+    boolean zip64 = extraBytes.length > 0;
+
+    HeaderBuilder header = new HeaderBuilder();
+    header.putInt(CENTRAL_HEADER_SIGNATURE);
+    header.putShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+    header.putShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+    header.putShort(FLAG_UTF8);
+    header.putShort(entry.mMethod);
+    header.putInt(getDosTime(entry.mLastModified));
+    header.putInt((int) entry.mCrc);
+    header.putInt((int) Math.min(entry.mCompressedSize, ZIP64_LIMIT));
+    header.putInt((int) Math.min(entry.mSize, ZIP64_LIMIT));
+    header.putShort(entry.mNameBytes.length);
+    header.putShort(zip64 ? extraBytes.length + 4 : 0);
+    header.putShort(0);
+    header.putShort(0);
+    header.putShort(0);
+    header.putInt(0);
+    header.putInt((int) Math.min(entry.mOffset, ZIP64_LIMIT));
+    header.putBytes(entry.mNameBytes);
+    if (zip64) {
+      header.putShort(1);
+      header.putShort(extraBytes.length);
+      header.putBytes(extraBytes);
+    }
+    return header.toByteArray();
+  }
+
+  private static byte[] getEndRecords(int entryCount, long directoryOffset,
+      long directorySize) {
+    boolean zip64 = entryCount >= ZIP64_ENTRY_LIMIT
+        || directoryOffset >= ZIP64_LIMIT || directorySize >= ZIP64_LIMIT;
+    HeaderBuilder records = new HeaderBuilder();
+    if (zip64) {
+      long recordOffset = directoryOffset + directorySize;
+      records.putInt(ZIP64_END_SIGNATURE);
+      records.putLong(44);
+      records.putShort(VERSION_ZIP64);
+      records.putShort(VERSION_ZIP64);
+      records.putInt(0);
+      records.putInt(0);
+      records.putLong(entryCount);
+      records.putLong(entryCount);
+      records.putLong(directorySize);
+      records.putLong(directoryOffset);
+
+      records.putInt(ZIP64_LOCATOR_SIGNATURE);
+      records.putInt(0);
+      records.putLong(recordOffset);
+      records.putInt(1);
+    }
+    records.putInt(END_SIGNATURE);
+    records.putShort(0);
+    records.putShort(0);
+    records.putShort(Math.min(entryCount, ZIP64_ENTRY_LIMIT));
+    records.putShort(Math.min(entryCount, ZIP64_ENTRY_LIMIT));
+    records.putInt((int) Math.min(directorySize, ZIP64_LIMIT));
+    records.putInt((int) Math.min(directoryOffset, ZIP64_LIMIT));
+    records.putShort(0);
+    return records.toByteArray();
+  }
+
+  /* Packs a time into the DOS date and time fields of a header. */
+  private static int getDosTime(long millis) {
+    Calendar calendar = Calendar.getInstance(DOS_TIME_ZONE);
+    calendar.setTimeInMillis(millis);
+    int year = calendar.get(Calendar.YEAR);
+    if (year < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+    int date = ((year - 1980) << 9)
+        | ((calendar.get(Calendar.MONTH) + 1) << 5)
+        | calendar.get(Calendar.DAY_OF_MONTH);
+    int time = (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+        | (calendar.get(Calendar.MINUTE) << 5)
+        | (calendar.get(Calendar.SECOND) >> 1);
+    return (date << 16) | time;
+  }
+
+  /**
+   * Copies a region of the archive to a channel. Entry data goes from file to
+   * channel without passing through the heap.
+   */
+  public void transferTo(long position, long length, WritableByteChannel target)
+      throws IOException {
+    long end = position + length;
+    for (Segment segment : mSegments) {
+      long from = Math.max(position, segment.mOffset);
+      long to = Math.min(end, segment.mOffset + segment.mLength);
+      if (from >= to) {
+        continue;
+      }
+      if (segment.mBytes != null) {
+        ByteBuffer buffer = ByteBuffer.wrap(segment.mBytes,
+            (int) (from - segment.mOffset), (int) (to - from));
+        while (buffer.hasRemaining()) {
+          target.write(buffer);
+        }
+      } else {
+        FileChannel channel = openSegment(segment);
+        try {
+          FileChannelEntity.transferRegion(channel, from - segment.mOffset,
+              to - from, target);
+        } finally {
+          channel.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Deflates the entries in a region of the archive that are known only
+   * from their stored record, so the region can be sent without blocking.
+   */
+  public void writeData(long position, long length) throws IOException {
+    long end = position + length;
+    for (Segment segment : mSegments) {
+      if (segment.mEntry != null && position < segment.mOffset
+          + segment.mLength && segment.mOffset < end) {
+        writeData(segment.mEntry);
+      }
+    }
+  }
+
+  /**
+   * Copies what a non-blocking channel takes of a region of the archive,
+   * from the segment the region starts in. Entries in the region must have
+   * been written with {@link #writeData(long, long)}.
+   *
+   * @return The number of bytes copied, 0 if the channel is full.
+   */
+  public long transferSome(long position, long length,
+      WritableByteChannel target) throws IOException {
+    for (Segment segment : mSegments) {
+      if (position >= segment.mOffset + segment.mLength) {
+        continue;
+      }
+      long segmentPosition = position - segment.mOffset;
+      long count = Math.min(length, segment.mLength - segmentPosition);
+      if (segment.mBytes != null) {
+        return target.write(ByteBuffer.wrap(segment.mBytes,
+            (int) segmentPosition, (int) count));
+      }
+      FileChannel channel = new FileInputStream(segment.mFile).getChannel();
+      try {
+        return FileChannelEntity.transferSome(channel, segmentPosition,
+            count, target);
+      } finally {
+        channel.close();
+      }
+    }
+    return 0;
+  }
+
+  /* Copies a region of the archive to a stream. */
+  public void writeTo(long position, long length, OutputStream out)
+      throws IOException {
+    long end = position + length;
+    byte[] buf = null;
+    for (Segment segment : mSegments) {
+      long from = Math.max(position, segment.mOffset);
+      long to = Math.min(end, segment.mOffset + segment.mLength);
+      if (from >= to) {
+        continue;
+      }
+      if (segment.mBytes != null) {
+        out.write(segment.mBytes, (int) (from - segment.mOffset),
+            (int) (to - from));
+      } else {
+        if (buf == null) {
+          buf = new byte[BUFFER_SIZE];
+        }
+        FileChannel channel = openSegment(segment);
+        try {
+          FileChannelEntity.copyRegion(channel, from - segment.mOffset,
+              to - from, out, buf);
+        } finally {
+          channel.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads part of the archive into a buffer.
+   *
+   * @return The number of bytes read, or -1 past the end of the archive.
+   */
+  public int read(long position, byte[] b, int off, int len)
+      throws IOException {
+    for (Segment segment : mSegments) {
+      if (position >= segment.mOffset + segment.mLength) {
+        continue;
+      }
+      int count = (int) Math.min(len,
+          segment.mOffset + segment.mLength - position);
+      int segmentPosition = (int) (position - segment.mOffset);
+      if (segment.mBytes != null) {
+        System.arraycopy(segment.mBytes, segmentPosition, b, off, count);
+        return count;
+      }
+      FileChannel channel = openSegment(segment);
+      try {
+        return channel.read(ByteBuffer.wrap(b, off, count),
+            position - segment.mOffset);
+      } finally {
+        channel.close();
+      }
+    }
+    return -1;
+  }
+
+  /* A file in the archive. */
+  private static class Entry {
+    final String mName;
+    final byte[] mNameBytes;
+    final Uri mUri;
+    /* The file on disk, or a copy for files from other providers. */
+    File mFile;
+    long mLastModified;
+    int mMethod = METHOD_STORED;
+    long mCrc;
+    long mSize;
+    long mCompressedSize;
+    long mDeflatedCrc;
+    /* The bytes that go into the archive, raw or deflated. */
+    File mData;
+    /* The cached record of deflated data, which may not be written yet. */
+    ZipEntryCache.Record mRecord;
+    long mOffset;
+
+    Entry(String name, Uri uri) throws UnsupportedEncodingException {
+      mName = name;
+      mNameBytes = name.getBytes("UTF-8");
+      mUri = uri;
+      mFile = FileProvider.getFile(uri);
+    }
+  }
+
+  /* A contiguous part of the archive, either in memory or in a file. */
+  private static class Segment {
+    final long mOffset;
+    final long mLength;
+    final byte[] mBytes;
+    final File mFile;
+    /* The entry whose cached data mFile is, to write it before reading. */
+    final Entry mEntry;
+
+    Segment(long offset, long length, byte[] bytes, File file, Entry entry) {
+      mOffset = offset;
+      mLength = length;
+      mBytes = bytes;
+      mFile = file;
+      mEntry = entry;
+    }
+  }
+
+  /* Little endian header encoder. */
+  private static class HeaderBuilder {
+    private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+
+    void putShort(int value) {
+      mOutput.write(value);
+      mOutput.write(value >> 8);
+    }
+
+    void putInt(int value) {
+      putShort(value);
+      putShort(value >> 16);
+    }
+
+    void putLong(long value) {
+      putInt((int) value);
+      putInt((int) (value >> 32));
+    }
+
+    void putBytes(byte[] bytes) {
+      mOutput.write(bytes, 0, bytes.length);
+    }
+
+    byte[] toByteArray() {
+      return mOutput.toByteArray();
+    }
+  }
+
+  private static class CompressorThreadFactory implements ThreadFactory {
+    private final AtomicInteger mCount = new AtomicInteger();
+
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "FileSharer zip " + mCount.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * HttpEntity for all or part of a {@link ZipArchive}.
+ */
+public class ZipArchiveEntity extends AbstractHttpEntity
+    implements TransferableEntity {
+
+  private final ZipArchive mArchive;
+  private final long mPosition;
+  private final long mLength;
+
+  /**
+   * @param archive The archive, released once the entity has been sent.
+   * @param position Offset of the first byte to send.
+   * @param length Number of bytes to send.
+   */
+  public ZipArchiveEntity(ZipArchive archive, long position, long length) {
+    mArchive = archive;
+    mPosition = position;
+    mLength = length;
+    setContentType("application/zip");
+  }
+
+  public long getContentLength() {
+    return mLength;
+  }
+
+  /* The archive's files are deleted once the entity has been consumed. */
+  public boolean isRepeatable() {
+    return false;
+  }
+
+  public boolean isStreaming() {
+    return false;
+  }
+
+  public InputStream getContent() throws IOException {
+    return new InputStream() {
+      private long mOffset;
+
+      @Override
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == 1 ? (b[0] & 0xff) : -1;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (mOffset >= mLength) {
+          return -1;
+        }
+        int count = mArchive.read(mPosition + mOffset, b, off,
+            (int) Math.min(len, mLength - mOffset));
+        if (count > 0) {
+          mOffset += count;
+        }
+        return count;
+      }
+    };
+  }
+
+  public void transferTo(WritableByteChannel target) throws IOException {
+    mArchive.transferTo(mPosition, mLength, target);
+  }
+
+  public void prepareTransfer() throws IOException {
+    mArchive.writeData(mPosition, mLength);
+  }
+
+  public long transferTo(long offset, WritableByteChannel target)
+      throws IOException {
+    return mArchive.transferSome(mPosition + offset, mLength - offset,
+        target);
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    mArchive.writeTo(mPosition, mLength, out);
+    out.flush();
+  }
+
+  /* Deletes the compressed entries once the response has been sent. */
+  @Override
+  public void consumeContent() {
+    mArchive.release();
+  }
+}
@@ -0,0 +1,298 @@
+//   Copyright 2009 Google Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.navjagpal.fileshare;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Checksums and deflated data of ZIP entries, keyed by file path, size and
+ * modification time. Rebuilding an archive to resume a download then costs a
+ * few stat calls instead of reading every file again.
+ *
+ * Deflated data lives in files that may be in use by responses still being
+ * sent. Records are reference counted and their files are only deleted once
+ * the last archive using them has been released.
+ *
+ * Checksums and compressed sizes are also kept in a database, which outlives
+ * the process and the limits on deflated data. Records loaded from it have
+ * no data yet; the archive deflates the file again only when that part of
+ * it is sent, and checks the result against what was stored. Only data
+ * that has been written counts against the limit. The database is never
+ * used under the cache's lock.
+ */
+class ZipEntryCache extends RefCountedCache<String, ZipEntryCache.Record> {
+
+  private static final String TAG = "FileSharer ZipEntryCache";
+
+  private static final int MAX_RECORDS = 4096;
+
+  private static final long MAX_DEFLATED_BYTES = 64 * 1024 * 1024;
+
+  /* Stored checksums are small, so many more of them are kept. */
+  private static final int MAX_STORED_RECORDS = 64 * 1024;
+
+  private static final String TABLE_NAME = "entries";
+  private static final String COLUMN_ID = "_id";
+  private static final String COLUMN_KEY = "key";
+  private static final String COLUMN_CRC = "crc";
+  private static final String COLUMN_DEFLATED = "deflated";
+  private static final String COLUMN_COMPRESSED_SIZE = "compressed_size";
+  private static final String COLUMN_DEFLATED_CRC = "deflated_crc";
+
+  private static ZipEntryCache sInstance;
+
+  private final File mDirectory;
+
+  /* Null if the database could not be opened. */
+  private final SQLiteDatabase mDatabase;
+
+  private long mDeflatedBytes;
+
+  /* Names the files of records loaded from the database. */
+  private int mRestoredCount;
+
+  private ZipEntryCache(File directory, SQLiteDatabase database) {
+    mDirectory = directory;
+    mDatabase = database;
+  }
+
+  /**
+   * Returns the cache, creating it under the given directory on first use.
+   * Deflated files left behind by an earlier run of the process are deleted,
+   * the checksums stored next to them are kept.
+   */
+  static synchronized ZipEntryCache getInstance(File cacheDir) {
+    if (sInstance == null) {
+      File directory = new File(cacheDir, "zip");
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        Log.w(TAG, "Could not create " + directory);
+      }
+      File[] stale = directory.listFiles();
+      if (stale != null) {
+        for (File file : stale) {
+          file.delete();
+        }
+      }
+      sInstance = new ZipEntryCache(directory,
+          openDatabase(new File(cacheDir, "zip_entries.db")));
+    }
+    return sInstance;
+  }
+
+  private static SQLiteDatabase openDatabase(File file) {
+    try {
+      SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+      db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " ("
+          + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+          + COLUMN_KEY + " TEXT UNIQUE,"
+          + COLUMN_CRC + " INTEGER,"
+          + COLUMN_DEFLATED + " INTEGER,"
+          + COLUMN_COMPRESSED_SIZE + " INTEGER,"
+          + COLUMN_DEFLATED_CRC + " INTEGER"
+          + ");");
+      return db;
+    } catch (SQLiteException e) {
+      Log.w(TAG, "Checksums won't be kept: " + e.toString());
+      return null;
+    }
+  }
+
+  static String getKey(File file, long size, long lastModified) {
+    return file.getAbsolutePath() + ":" + size + ":" + lastModified;
+  }
+
+  /* Returns a new file to deflate an entry into. */
+  File createDeflatedFile() throws IOException {
+    return File.createTempFile("entry", ".z", mDirectory);
+  }
+
+  /**
+   * Looks up a record, in memory or else in the database, and marks it in
+   * use. Records from the database have to be written before they are read,
+   * see {@link Record#isWritten}.
+   *
+   * @return The record, to be handed back to {@link #release}, or null.
+   */
+  @Override
+  Record acquire(String key) {
+    Record record = super.acquire(key);
+    if (record != null) {
+      return record;
+    }
+    record = load(key);
+    return record != null ? add(key, record) : null;
+  }
+
+  /* Counts the data of a record loaded from the database once written. */
+  synchronized void setWritten(Record record) {
+    record.setWritten();
+    if (!record.mEvicted && !record.mCounted) {
+      record.mCounted = true;
+      mDeflatedBytes += record.mCompressedSize;
+      trim();
+    }
+  }
+
+  /**
+   * Forgets a record whose file no longer deflates to what was stored, so
+   * the next archive reads the file again.
+   */
+  @Override
+  void remove(String key, Record record) {
+    super.remove(key, record);
+    if (mDatabase != null) {
+      try {
+        mDatabase.delete(TABLE_NAME, COLUMN_KEY + "=?", new String[] {key});
+      } catch (SQLiteException e) {
+        Log.w(TAG, "Could not remove " + key + ": " + e.toString());
+      }
+    }
+  }
+
+  private synchronized File getRestoredFile() {
+    mRestoredCount++;
+    return new File(mDirectory, "restored" + mRestoredCount + ".z");
+  }
+
+  private Record load(String key) {
+    if (mDatabase == null) {
+      return null;
+    }
+    Cursor c;
+    try {
+      c = mDatabase.query(TABLE_NAME, new String[] {COLUMN_CRC,
+          COLUMN_DEFLATED, COLUMN_COMPRESSED_SIZE, COLUMN_DEFLATED_CRC},
+          COLUMN_KEY + "=?", new String[] {key}, null, null, null);
+    } catch (SQLiteException e) {
+      Log.w(TAG, "Could not look up " + key + ": " + e.toString());
+      return null;
+    }
+    try {
+      if (!c.moveToFirst()) {
+        return null;
+      }
+      File deflated = c.getInt(1) != 0 ? getRestoredFile() : null;
+      return new Record(c.getLong(0), deflated, c.getLong(2), c.getLong(3),
+          false);
+    } finally {
+      c.close();
+    }
+  }
+
+  /**
+   * Stores the records an archive added, in one transaction, dropping the
+   * oldest ones past the limit. Added records are only kept in memory until
+   * they are stored.
+   */
+  void store(Map<String, Record> records) {
+    if (mDatabase == null || records.isEmpty()) {
+      return;
+    }
+    try {
+      mDatabase.beginTransaction();
+      try {
+        long id = 0;
+        for (Map.Entry<String, Record> entry : records.entrySet()) {
+          Record record = entry.getValue();
+          ContentValues values = new ContentValues();
+          values.put(COLUMN_KEY, entry.getKey());
+          values.put(COLUMN_CRC, record.mCrc);
+          values.put(COLUMN_DEFLATED, record.mDeflated != null ? 1 : 0);
+          values.put(COLUMN_COMPRESSED_SIZE, record.mCompressedSize);
+          values.put(COLUMN_DEFLATED_CRC, record.mDeflatedCrc);
+          id = mDatabase.replace(TABLE_NAME, null, values);
+        }
+        if (id > MAX_STORED_RECORDS) {
+          mDatabase.delete(TABLE_NAME, COLUMN_ID + "<="
+              + (id - MAX_STORED_RECORDS), null);
+        }
+        mDatabase.setTransactionSuccessful();
+      } finally {
+        mDatabase.endTransaction();
+      }
+    } catch (SQLiteException e) {
+      Log.w(TAG, "Could not store " + records.size() + " entries: "
+          + e.toString());
+    }
+  }
+
+  @Override
+  protected boolean isOverBudget() {
+    return size() > MAX_RECORDS || mDeflatedBytes > MAX_DEFLATED_BYTES;
+  }
+
+  @Override
+  protected void onAdded(Record record) {
+    if (record.mDeflated != null && record.isWritten()) {
+      record.mCounted = true;
+      mDeflatedBytes += record.mCompressedSize;
+    }
+  }
+
+  @Override
+  protected void onEvicted(Record record) {
+    if (record.mCounted) {
+      mDeflatedBytes -= record.mCompressedSize;
+    }
+  }
+
+  @Override
+  protected void discard(Record record) {
+    if (record.mDeflated != null && record.mDeflated.exists()
+        && !record.mDeflated.delete()) {
+      Log.w(TAG, "Could not delete " + record.mDeflated);
+    }
+  }
+
+  /* What we know about the content of one file. */
+  static class Record extends RefCountedCache.Entry {
+    final long mCrc;
+    /* Deflated data, or null if the file is stored. */
+    final File mDeflated;
+    final long mCompressedSize;
+    /* Checksum of the deflated data, to check it when written again. */
+    final long mDeflatedCrc;
+    /* Whether mCompressedSize is part of mDeflatedBytes. */
+    boolean mCounted;
+    /* Set holding the record, whoever writes mDeflated holds it. */
+    private volatile boolean mWritten;
+
+    Record(long crc, File deflated, long compressedSize, long deflatedCrc,
+        boolean written) {
+      mCrc = crc;
+      mDeflated = deflated;
+      mCompressedSize = compressedSize;
+      mDeflatedCrc = deflatedCrc;
+      mWritten = written;
+    }
+
+    /* Whether mDeflated holds the data, or there is none to hold. */
+    boolean isWritten() {
+      return mDeflated == null || mWritten;
+    }
+
+    private void setWritten() {
+      mWritten = true;
+    }
+  }
+}